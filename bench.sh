@@ -0,0 +1,22 @@
+#!/bin/sh
+
+# Builds and runs the JMH benchmarks in bench/src
+# JMH_LIB is a folder with the JMH jars:
+#   jmh-core, jmh-generator-annprocess, jopt-simple and commons-math3
+JMH_LIB="${JMH_LIB:-/home/binder/lib/jmh}"
+JMH_CP=`ls $JMH_LIB/*.jar | tr '\n' ':'`
+
+# The processors do not depend on the Arduino jars, so only they (and CBVersion, used by
+# the updater) are compiled here
+rm -rf bench/bin
+javac -target 1.8 -source 1.8 \
+  -cp "$JMH_CP" \
+  -d bench/bin \
+  src/CBVersion.java \
+  src/RA*.java \
+  bench/src/RABenchmark.java
+
+# Extra JMH options can be given, ie: ./bench.sh -p sketch=/path/to/sketch.ino
+java -cp "bench/bin:$JMH_CP" org.openjdk.jmh.Main \
+  -prof gc \
+  "$@" | tee bench_output.txt
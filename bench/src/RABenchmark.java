@@ -0,0 +1,247 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+JMH benchmarks for the processing pipeline.
+
+Each benchmark runs over a sketch of the given number of lines. The sketch is
+generated with a mix of feature keywords, labels, cloud settings, comments and
+filler code. Set the sketch parameter to the path of a real sketch to use it instead.
+The feature parameter works the same way for feature.txt.
+
+The headers are written into one reused RAHeaderWriter, like RASketchProcessor does, so
+the allocations are the ones of a real run (without the disk writes).
+
+Run with bench.sh, which turns on the gc profiler to report the bytes allocated per operation.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RABenchmark {
+    private static final int SYNTHETIC_FEATURES = 150;
+
+    @Param({"500", "5000", "50000"})
+    public int lines;
+
+    // Path to a real sketch, empty to use a generated sketch
+    @Param({""})
+    public String sketch;
+
+    // Path to a real feature.txt, empty to use generated definitions
+    @Param({""})
+    public String feature;
+
+    private File workFolder;
+    private PrintStream console;
+    private String program;
+    private RASketchScan scan;
+    private RAFeatures featuresFile;
+    private RALabels labelsFile;
+    private RACustomSettings customSettings;
+    private RAHeaderWriter output;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException {
+        // The processors print every item found, keep it out of the results
+        console = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+
+        workFolder = Files.createTempDirectory("cbtool-bench").toFile();
+        File updateFolder = new File(workFolder, "update");
+        updateFolder.mkdirs();
+        File featureFile = new File(updateFolder, "feature.txt");
+        if (feature.isEmpty()) {
+            Files.write(featureFile.toPath(), generateFeatures().getBytes(StandardCharsets.UTF_8));
+        } else {
+            Files.copy(new File(feature).toPath(), featureFile.toPath());
+        }
+        if (sketch.isEmpty()) {
+            program = generateSketch(lines);
+        } else {
+            program = new String(Files.readAllBytes(new File(sketch).toPath()), StandardCharsets.UTF_8);
+        }
+
+        featuresFile = new RAFeatures();
+        labelsFile = new RALabels();
+        customSettings = new RACustomSettings();
+        output = new RAHeaderWriter();
+        featuresFile.init(workFolder.getPath(), "bench.ino");
+        labelsFile.init(workFolder.getPath(), "bench.ino");
+        customSettings.init(workFolder.getPath(), "bench.ino");
+        featuresFile.loadDefaults();
+        scan = new RASketchScanner(featuresFile.getKeywordMatcher()).scan(program);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        // Each processor starts from the defaults, like a new run of the tool
+        featuresFile.loadDefaults();
+        labelsFile.loadDefaults();
+        customSettings.loadDefaults();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        System.setOut(console);
+        deleteFolder(workFolder);
+    }
+
+    @Benchmark
+    public RASketchScan scan() {
+        return new RASketchScanner(featuresFile.getKeywordMatcher()).scan(program);
+    }
+
+    @Benchmark
+    public int featuresProcessAndGenerate() {
+        featuresFile.process(scan);
+        return write(featuresFile);
+    }
+
+    @Benchmark
+    public int labelsProcessAndGenerate() {
+        labelsFile.process(scan);
+        return write(labelsFile);
+    }
+
+    @Benchmark
+    public int settingsProcessAndGenerate() {
+        customSettings.process(scan);
+        return write(customSettings);
+    }
+
+    @Benchmark
+    public int labelsGenerate() {
+        return write(labelsFile);
+    }
+
+    // Complete pipeline for one sketch, without the disk writes
+    @Benchmark
+    public int pipeline() {
+        RASketchScan s = new RASketchScanner(featuresFile.getKeywordMatcher()).scan(program);
+        featuresFile.process(s);
+        labelsFile.process(s);
+        customSettings.process(s);
+        return write(featuresFile) + write(labelsFile) + write(customSettings);
+    }
+
+    // Returns the size of the generated file
+    private int write(RABaseFile file) {
+        output.reset();
+        file.writeFile(output);
+        return output.size();
+    }
+
+    private static String generateFeatures() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < SYNTHETIC_FEATURES; ++i) {
+            sb.append("FEATURE_").append(i).append(",ReefAngel.Module").append(i).append(".,Module ")
+                    .append(i).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // Generated sketch, the same for every run with the same number of lines
+    private static String generateSketch(int lines) {
+        Random random = new Random(lines);
+        StringBuilder sb = new StringBuilder();
+        sb.append("#include <ReefAngel.h>\n");
+        sb.append("// RA_CLOUD_USERNAME=bench\n");
+        sb.append("// RA_CLOUD_PASSWORD=secret\n");
+        for (int i = 0; i < lines; ++i) {
+            switch (random.nextInt(10)) {
+                case 0:
+                    sb.append("  ReefAngel.Module").append(random.nextInt(SYNTHETIC_FEATURES * 2))
+                            .append(".Update();\n");
+                    break;
+                case 1:
+                    sb.append("// RA_LABEL LABEL_PORT").append(1 + random.nextInt(8)).append("=Port ")
+                            .append(i).append('\n');
+                    break;
+                case 2:
+                    sb.append("  // ReefAngel.Module").append(random.nextInt(SYNTHETIC_FEATURES))
+                            .append(".Disabled();\n");
+                    break;
+                case 3:
+                    sb.append("  Serial.println(\"ReefAngel.Module").append(random.nextInt(SYNTHETIC_FEATURES))
+                            .append(". value\");\n");
+                    break;
+                case 4:
+                    sb.append("  ReefAngel.Relay.On(Box").append(1 + random.nextInt(8)).append("_Port")
+                            .append(1 + random.nextInt(8)).append(");\n");
+                    break;
+                default:
+                    sb.append("  int value").append(i).append(" = analogRead(A0) * ").append(i).append(";\n");
+                    break;
+            }
+        }
+        sb.append("  ReefAngel.SetCodeVersion(\"1.0.0\");\n");
+        sb.append("  ReefAngel.AddStandardMenu();\n");
+        return sb.toString();
+    }
+
+    private static void deleteFolder(File folder) {
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteFolder(f);
+            }
+        }
+        folder.delete();
+    }
+}
@@ -10,11 +10,36 @@ javac -target 1.8 -source 1.8 \
   -cp "$CORE:$PDE" \
   -d bin \
   src/CBTool.java \
+  src/CBToolCli.java \
+  src/CBVersion.java \
   src/RABaseFile.java \
+  src/RADownloader.java \
+  src/RAFeatureGraph.java \
+  src/RAFeatureIndex.java \
   src/RAFeatures.java \
+  src/RAFiles.java \
+  src/RAFootprint.java \
+  src/RAHash.java \
+  src/RAHeaderWriter.java \
+  src/RAIncludes.java \
+  src/RAKeywordMatcher.java \
+  src/RALabelTable.java \
   src/RALabels.java \
   src/RALibsVersion.java \
-  src/RACustomSettings.java
+  src/RALog.java \
+  src/RAMetrics.java \
+  src/RAMetricsMXBean.java \
+  src/RAPhaseEvent.java \
+  src/RAPrefetcher.java \
+  src/RAPreprocessor.java \
+  src/RARunCache.java \
+  src/RACustomSettings.java \
+  src/RASketchListener.java \
+  src/RASketchProcessor.java \
+  src/RASketchScan.java \
+  src/RASketchScanner.java \
+  src/RASketchWatcher.java \
+  src/RAUpdater.java
 
 if [ ! -d "tool" ]; then
   # tool directory doesn't exist, so create it
@@ -25,16 +25,28 @@ package info.curtbinder.arduino.tool;
 
 import processing.app.Editor;
 import processing.app.BaseNoGui;
+import processing.app.PreferencesData;
 import processing.app.SketchFile;
 import processing.app.tools.Tool;
 import processing.app.helpers.PreferencesMapException;
 
-import java.io.FileOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 
 public class CBTool implements Tool {
     private static final String VERSION = "2.4.0";
@@ -42,20 +54,55 @@ public class CBTool implements Tool {
     private static final String DOWNLOAD_URL = "https://curtbinder.info/reefangel/";
     private static final String LATEST_VERSION_FILENAME = "cbtool-version.txt";
     private static final String TOOLS_FOLDER = "/tools/";
-    private static final String ZIP_FILENAME_FORMAT = "CBTool-v%s.zip";
+    private static final String UPDATE_FOLDER = "/update/";
+    // Set to true in preferences.txt to keep the files up to date after running once
+    private static final String WATCH_PREFERENCE = "cbtool.watch";
+    // Console messages: quiet, normal or verbose
+    private static final String LOG_PREFERENCE = "cbtool.log";
+    // Extra symbols for the #if blocks of the sketch (NAME or NAME=VALUE), such as RA_STAR
+    private static final String DEFINES_PREFERENCE = "cbtool.defines";
+    // Bytes of flash and SRAM on the board (FLASH[,SRAM]), instead of the budget in feature_costs.txt
+    private static final String BUDGET_PREFERENCE = "cbtool.budget";
+    // Set to true to stop when the estimated size is over the budget, instead of a warning
+    private static final String STRICT_BUDGET_PREFERENCE = "cbtool.budget.strict";
+    // Architecture of the selected board (avr, samd), defined as ARDUINO_ARCH_<ARCH> like the IDE
+    private static final String TARGET_PLATFORM_PREFERENCE = "target_platform";
+    // Longest time allowed to process a sketch
+    private static final int RUN_TIMEOUT_MS = 60000;
+    // Only offer the update once each time Arduino is started
+    private static boolean offeredUpdate = false;
 
     Editor editor;
-    RAFeatures featuresFile;
-    RALabels labelsFile;
     RALibsVersion librariesVersion;
-    RACustomSettings customSettings;
+    RASketchProcessor sketchProcessor;
+    RASketchWatcher sketchWatcher;
+    RunWorker runWorker;
+    // TRUE until the background part of the run has returned (even when cancelled)
+    private final AtomicBoolean running = new AtomicBoolean(false);
 
     public void init(Editor editor) {
         this.editor = editor;
-        featuresFile = new RAFeatures();
-        labelsFile = new RALabels();
         librariesVersion = new RALibsVersion();
-        customSettings = new RACustomSettings();
+        sketchProcessor = new RASketchProcessor();
+        // An update downloaded while the tool was in use
+        new RAUpdater(DOWNLOAD_URL, new File(getToolsFolder())).resumePending();
+        startPrefetch();
+    }
+
+    // Refreshes feature.txt and the latest version file in the background, so running
+    // the tool never waits for the server
+    private void startPrefetch() {
+        RAPrefetcher prefetcher = new RAPrefetcher();
+        try {
+            prefetcher.add(new URL(RAFeatures.MAIN_FEATURE_URL),
+                    new File(BaseNoGui.getSketchbookPath() + UPDATE_FOLDER + RAFeatures.UPDATE_FEATURE_FILENAME));
+            prefetcher.add(new URL(DOWNLOAD_URL + LATEST_VERSION_FILENAME),
+                    new File(getToolsFolder() + LATEST_VERSION_FILENAME));
+        } catch (MalformedURLException e) {
+            // The URLs are constants
+            throw new IllegalStateException(e);
+        }
+        prefetcher.start();
     }
 
     public String getMenuTitle() {
@@ -67,171 +114,300 @@ public class CBTool implements Tool {
     }
 
     public void run() {
-        System.out.println(getVersionString());
-        init();
-        librariesVersion.display();
-        if (!hasPrerequisites()) {
-            // Failed to find proper files, do not proceed
+        if (runWorker != null && !runWorker.isDone()) {
+            // Selecting the tool again while it is running cancels it
+            runWorker.cancel(true);
             return;
         }
-        displayCodeVersionString();
-        loadDefaults();
-        updateStatus("Processing code for Features and Labels...");
-
-        try {
-            System.out.println("Generating Features file from " + getFileName());
-            String program = getProgram();
-            featuresFile.process(program);
-            saveFile(featuresFile.generateFile(), featuresFile.getFileName());
-            System.out.println("\nFinished detecting Features.\nGenerating Custom Labels file from " + getFileName());
-            labelsFile.process(program);
-            saveFile(labelsFile.generateFile(), labelsFile.getFileName());
-            System.out.println("\nFinished detecting Labels.\nGenerating Cloud Authentication (if any) from " + getFileName());
-            // TODO process custom settings and display output
-            customSettings.process(program);
-            saveFile(customSettings.generateFile(), customSettings.getFileName());
-            System.out.println("\nFinished detecting Cloud Authentication.");
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (running.get()) {
+            // Cancelled, but the last step is still finishing
+            updateStatus("Stopping the previous run, try again in a moment.");
             return;
         }
+        setLogLevel();
+        RALog.console().println(getVersionString());
+        if (sketchWatcher != null) {
+            // Running again, the watcher is restarted once finished (if enabled)
+            sketchWatcher.stop();
+            sketchWatcher = null;
+        }
+        init();
+        // The sketch is read from the editor here, the rest runs in the background so
+        // the editor stays responsive
+        runWorker = new RunWorker(getPrograms(), getFileName());
+        runWorker.start();
+    }
+
+    /*
+    Processes the sketch on a background thread.
+
+    The status bar is updated with each step. The run is cancelled by selecting the tool
+    again or when it takes longer than RUN_TIMEOUT_MS. The steps check for the
+    cancellation between them, the generated files are always written completely.
+    */
+    private class RunWorker extends SwingWorker<Long, String> {
+        private final List<String> programs;
+        private final String fileName;
+        private final Timer deadline;
+        private volatile boolean timedOut;
+
+        RunWorker(List<String> programs, String fileName) {
+            this.programs = programs;
+            this.fileName = fileName;
+            deadline = new Timer(RUN_TIMEOUT_MS, e -> {
+                timedOut = true;
+                cancel(true);
+            });
+            deadline.setRepeats(false);
+        }
+
+        // Starts the run along with its deadline, called on the EDT
+        void start() {
+            deadline.start();
+            execute();
+        }
+
+        @Override
+        protected Long doInBackground() throws Exception {
+            running.set(true);
+            RAMetrics.Phase runPhase = RAMetrics.startPhase("run", fileName);
+            boolean processed;
+            long elapsed;
+            try {
+                processed = processSketch();
+            } finally {
+                running.set(false);
+                elapsed = runPhase.end();
+            }
+            // NULL when the prerequisites are missing
+            return processed ? elapsed : null;
+        }
+
+        // Returns FALSE if the prerequisites are missing
+        private boolean processSketch() throws Exception {
+            librariesVersion.display();
+            publish("Checking for changes...");
+            if (sketchProcessor.isUpToDate(programs, librariesVersion.getLibraryVersion(), VERSION)) {
+                if (PreferencesData.getBoolean(WATCH_PREFERENCE)) {
+                    // The watcher scans with the definitions
+                    sketchProcessor.loadDefaults();
+                }
+                return true;
+            }
+            checkCancelled();
+            publish("Checking for the feature definitions...");
+            if (!sketchProcessor.hasPrerequisites()) {
+                // Failed to find proper files, do not proceed
+                // feature.txt is missing, make sure it is being downloaded
+                startPrefetch();
+                return false;
+            }
+            checkCancelled();
+            publish("Loading the feature definitions...");
+            sketchProcessor.loadDefaults();
+            checkCancelled();
+            publish("Scanning the sketch...");
+            RASketchScan scan = sketchProcessor.scan(programs);
+            sketchProcessor.displayCodeVersionString(scan);
+            checkCancelled();
+            publish("Processing code for Features and Labels...");
+            sketchProcessor.process(scan);
+            sketchProcessor.saveRun(programs, librariesVersion.getLibraryVersion(), VERSION);
+            return true;
+        }
 
-        updateStatus("Finished.");
-        System.out.println("Ready to compile & upload.");
+        private void checkCancelled() {
+            if (isCancelled() || Thread.currentThread().isInterrupted()) {
+                throw new CancellationException();
+            }
+        }
 
-        // compile
-        /*
-        Runnable presentHandler = new LocalBuildHandler(editor, false);
-        Runnable runHandler = new LocalBuildHandler(editor);
-        editor.handleRun(false, presentHandler, runHandler);
-        */
+        @Override
+        protected void process(List<String> steps) {
+            updateStatus(steps.get(steps.size() - 1));
+        }
+
+        @Override
+        protected void done() {
+            deadline.stop();
+            Long elapsed;
+            try {
+                elapsed = get();
+            } catch (CancellationException e) {
+                String msg = timedOut ? "Stopped, processing took longer than " + (RUN_TIMEOUT_MS / 1000) +
+                        " seconds." : "Cancelled.";
+                RALog.console().println(msg);
+                updateStatus(msg);
+                return;
+            } catch (InterruptedException | ExecutionException e) {
+                Throwable cause = (e instanceof ExecutionException) ? e.getCause() : e;
+                cause.printStackTrace();
+                editor.statusError("Failed to process the sketch: " + cause.getMessage());
+                return;
+            }
+            if (elapsed == null) {
+                // Missing the prerequisites, the reason was already shown
+                updateStatus("Unable to process the sketch, see the console for details.");
+                return;
+            }
+            if (!sketchProcessor.isWithinBudget()) {
+                editor.statusError("The sketch is estimated to be over the budget of the board, see the console.");
+                return;
+            }
+
+            updateStatus("Finished.");
+            RALog.console().println("Finished in " + elapsed + " ms.");
+            RALog.console().println("Ready to compile & upload.");
+            if (PreferencesData.getBoolean(WATCH_PREFERENCE)) {
+                startWatcher();
+            }
+            checkForLatestVersion();
+
+            // compile
+            /*
+            Runnable presentHandler = new LocalBuildHandler(editor, false);
+            Runnable runHandler = new LocalBuildHandler(editor);
+            editor.handleRun(false, presentHandler, runHandler);
+            */
+        }
+    }
+
+    private void setLogLevel() {
+        try {
+            RALog.setLevel(RALog.parseLevel(PreferencesData.get(LOG_PREFERENCE, "normal")));
+        } catch (IllegalArgumentException e) {
+            RALog.setLevel(RALog.NORMAL);
+        }
     }
 
     private void init() {
-        featuresFile.init(BaseNoGui.getSketchbookPath(), getFileName());
-        labelsFile.init(BaseNoGui.getSketchbookPath(), getFileName());
         librariesVersion.init(BaseNoGui.getSketchbookPath());
-        customSettings.init(BaseNoGui.getSketchbookPath(), getFileName());
+        sketchProcessor.init(BaseNoGui.getSketchbookPath(), getFileName());
+        // feature.txt is downloaded in the background (see startPrefetch)
+        sketchProcessor.setDownloadMissing(false);
+        sketchProcessor.setDefines(getDefines());
+        sketchProcessor.setSketchFolder(editor.getSketch().getFolder());
+        long[] budget = new long[2];
+        try {
+            budget = RAFootprint.parseBudget(PreferencesData.get(BUDGET_PREFERENCE, "0"));
+        } catch (IllegalArgumentException e) {
+            RALog.console().error(e.getMessage());
+        }
+        sketchProcessor.setBudget(budget[RAFootprint.FLASH], budget[RAFootprint.SRAM],
+                PreferencesData.getBoolean(STRICT_BUDGET_PREFERENCE));
     }
 
-    private void loadDefaults() {
-        featuresFile.loadDefaults();
-        labelsFile.loadDefaults();
-        customSettings.loadDefaults();
+    // Symbols the board defines, used to skip the #if blocks that are not compiled
+    private Map<String, String> getDefines() {
+        HashMap<String, String> defines = new HashMap<>();
+        String platform = PreferencesData.get(TARGET_PLATFORM_PREFERENCE);
+        if (platform != null) {
+            RAPreprocessor.addArch(platform, defines);
+        }
+        try {
+            RAPreprocessor.addDefines(PreferencesData.get(DEFINES_PREFERENCE, ""), defines);
+        } catch (IllegalArgumentException e) {
+            RALog.console().error(e.getMessage());
+        }
+        return defines;
     }
 
-    private boolean hasPrerequisites() {
-        if (! labelsFile.hasPrerequisites()) {
-            return false;
+    private void startWatcher() {
+        // The watcher takes over the processor, a new one is used for the next run
+        if (sketchWatcher != null) {
+            sketchWatcher.stop();
         }
-        if (! featuresFile.hasPrerequisites()) {
-            return false;
-        }
-        if (! customSettings.hasPrerequisites()) {
-            return false;
+        sketchWatcher = new RASketchWatcher(sketchProcessor, editor.getSketch().getPrimaryFile().getFile(),
+                new File(BaseNoGui.getSketchbookPath() + UPDATE_FOLDER));
+        sketchProcessor = new RASketchProcessor();
+        try {
+            sketchWatcher.start();
+        } catch (IOException e) {
+            RALog.console().error("Unable to watch the sketch for changes: " + e.getMessage());
+            sketchWatcher = null;
         }
-        return true;
     }
 
     private void updateStatus(String msg) {
         editor.statusNotice(msg);
     }
 
-    private String getProgram() {
-        return editor.getCurrentTab().getSketchFile().getProgram();
+    // Code from all the tabs of the sketch, main sketch file first
+    private List<String> getPrograms() {
+        ArrayList<String> programs = new ArrayList<>();
+        for (SketchFile file : editor.getSketch().getFiles()) {
+            programs.add(file.getProgram());
+        }
+        return programs;
     }
 
     private String getFileName() {
-        return editor.getCurrentTab().getSketchFile().getFileName();
+        return editor.getSketch().getPrimaryFile().getFileName();
     }
 
-    private void saveFile(String fileContents, String fileName) throws IOException {
-        BaseNoGui.saveFile(fileContents, new File(fileName));
-    }
-
-    private static String CODE_VERSION_START = "ReefAngel.SetCodeVersion(\"";
-    private static String CODE_VERSION_END = "\");";
-
-    private void displayCodeVersionString() {
-        String program = getProgram();
-        String version = "";
-        /*
-        Get Index of the function call to set the code version.
-        From that index, we need to locate the closing part of the function call.
-        The code version will be between the quotes.
-        */
-        int start_index = program.indexOf(CODE_VERSION_START);
-        if (start_index > 0) {
-            int end_index = program.indexOf(CODE_VERSION_END, start_index);
-            version = program.substring(start_index + CODE_VERSION_START.length(), end_index);
-        }
-        System.out.print("User Code Version: ");
-        if (version.isEmpty()) {
-            System.out.println("NONE");
-        } else {
-            System.out.println(version);
-        }
-    }
-
-    /*
-    TODO
-        - download latest version file (store in /tools/ folder)
-        - read version from file
-        - compare against current version
-        - if versions match, do nothing
-        - if versions do not match, display message box to download latest version
-            - download latest version (store in /tools/ folder)
-            - extract it in place (extract in /tools/ folder)
-            - prompt to restart arduino to take effect
-            - delete zip file
-        - delete latest version file (stored in /tools/ folder)
-    */
-    /*
+    // Compares against the latest version file downloaded in the background, the
+    // server is never contacted here
     private void checkForLatestVersion() {
-        if (!downloadFile(LATEST_VERSION_FILENAME)) {
-            System.out.println("Failed to check for latest plugin version.");
+        File file = new File(getToolsFolder() + LATEST_VERSION_FILENAME);
+        if (offeredUpdate || !file.isFile()) {
             return;
         }
         // have the file, lets read it
         String latest_version = "";
-        try {
-            FileReader fr = new FileReader(getToolsFolder() + LATEST_VERSION_FILENAME);
-            BufferedReader br = new BufferedReader(fr);
-            latest_version = br.readLine();
-            br.close();
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line = br.readLine();
+            if (line != null) {
+                latest_version = line.trim();
+            }
         } catch (IOException e) {
             // Failed to read file
             return;
         }
-        // We should have latest file version now
+        if (!RAUpdater.isNewer(latest_version, VERSION)) {
+            return;
+        }
+        offeredUpdate = true;
+        RALog.console().println(NAME + " v" + latest_version + " is available.");
+        int answer = JOptionPane.showConfirmDialog(editor,
+                NAME + " v" + latest_version + " is available (installed: v" + VERSION + ").\n" +
+                        "Download and install it now?",
+                NAME + " Update", JOptionPane.YES_NO_OPTION);
+        if (answer == JOptionPane.YES_OPTION) {
+            startUpdate(latest_version);
+        }
+    }
 
+    // Downloads and installs the update on a background thread
+    private void startUpdate(String version) {
+        RAUpdater updater = new RAUpdater(DOWNLOAD_URL, new File(getToolsFolder()));
+        Thread thread = new Thread(() -> {
+            String message;
+            try {
+                if (updater.install(version)) {
+                    message = NAME + " v" + version + " installed, restart Arduino to use it.";
+                } else {
+                    // Windows keeps the current version locked until Arduino is closed
+                    updater.finishOnExit();
+                    message = NAME + " v" + version + " is installed when Arduino is closed, " +
+                            "restart Arduino to use it.";
+                }
+                RALog.console().println(message);
+            } catch (IOException e) {
+                message = "Failed to install " + NAME + " v" + version + ": " + e.getMessage();
+                RALog.console().error(message + "\nDownload it manually from: " + DOWNLOAD_URL);
+            }
+            final String status = message;
+            SwingUtilities.invokeLater(() -> updateStatus(status));
+        }, "CBTool updater");
+        thread.setDaemon(true);
+        thread.start();
+        updateStatus("Downloading " + NAME + " v" + version + "...");
     }
-    */
 
     private String getToolsFolder() {
         return BaseNoGui.getSketchbookPath() + TOOLS_FOLDER;
     }
 
-    private boolean downloadFile(String filename) {
-        // Download the given file and save in /tools/ folder
-        String file = DOWNLOAD_URL + filename;
-        String outfile = getToolsFolder() + filename;
-        System.out.println("\nDownloading '" + file + "'\nSaving to: '" + outfile + "'");
-        boolean fRet = false;
-        try {
-            URL url = new URL(file);
-            ReadableByteChannel rbc = Channels.newChannel(url.openStream());
-            FileOutputStream fos = new FileOutputStream(outfile);
-            fos.getChannel().transferFrom(rbc, 0, Long.MAX_VALUE);
-            fos.close();
-            rbc.close();
-            fRet = true;
-        } catch (IOException e) {
-            // Failed to download the file from IOException
-        }
-        return fRet;
-    }
-
     /*
     class LocalBuildHandler implements Runnable {
 
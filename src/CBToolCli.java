@@ -0,0 +1,307 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+Command line version of the tool, runs without the Arduino IDE.
+
+Generates the headers for many sketches at once using a fixed pool of worker threads.
+Each sketch gets its own output folder: <output>/<sketch name>/libraries/...
+Like the IDE, all the tabs (source files in the sketch folder) are processed.
+
+Usage:
+    java -cp cbtool.jar info.curtbinder.arduino.tool.CBToolCli [options] [sketch.ino ...]
+
+Options:
+    --sketchbook <folder>   sketchbook containing update/feature.txt (default: current folder)
+    --output <folder>       folder for the generated files (default: output)
+    --manifest <file>       file listing the sketches to process, one per line
+    --threads <count>       number of worker threads (default: number of processors)
+    --watch                 keep running and regenerate the headers when the sketches change
+    --log <level>           console messages: off, quiet (errors only), normal, verbose
+    --quiet                 no console messages, same as --log off (the exit code shows the result)
+    --arch <name>           architecture of the board (avr, samd), defines ARDUINO_ARCH_<NAME>
+                            like Arduino. Without it the code for every board is detected.
+    --define <name[=value]> symbol defined for the board (such as RA_STAR), used for the
+                            #if / #ifdef blocks of the sketches, can be repeated
+    --budget <flash[,sram]> bytes available on the board, instead of the budget in feature_costs.txt
+    --strict-budget         fail the sketches estimated to be over the budget, instead of a warning
+*/
+public class CBToolCli {
+    private static final String UPDATE_FOLDER = "/update/";
+
+    private String sketchbookPath;
+    private String outputPath;
+    private int threads;
+    private boolean watch;
+    private final HashMap<String, String> defines;
+    private long[] budget;
+    private boolean strictBudget;
+    private final ArrayList<File> sketches;
+    private RASketchProcessor[] processors;
+
+    public CBToolCli() {
+        sketchbookPath = ".";
+        outputPath = "output";
+        threads = Runtime.getRuntime().availableProcessors();
+        sketches = new ArrayList<>();
+        defines = new HashMap<>();
+        budget = new long[2];
+    }
+
+    public static void main(String[] args) {
+        CBToolCli cli = new CBToolCli();
+        try {
+            cli.parseArgs(args);
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            usage();
+            System.exit(2);
+        }
+        boolean success = cli.run();
+        if (cli.watch) {
+            cli.watch();
+        }
+        System.exit(success ? 0 : 1);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: CBToolCli [--sketchbook <folder>] [--output <folder>] " +
+                "[--manifest <file>] [--threads <count>] [--watch] [--log <level>] [--quiet] [--arch <name>] " +
+                "[--define <name[=value]>] " +
+                "[--budget <flash[,sram]>] [--strict-budget] [sketch.ino ...]");
+    }
+
+    private void parseArgs(String[] args) throws IOException {
+        for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            if (arg.equals("--watch")) {
+                watch = true;
+            } else if (arg.equals("--quiet")) {
+                RALog.setLevel(RALog.OFF);
+            } else if (arg.equals("--strict-budget")) {
+                strictBudget = true;
+            } else if (arg.startsWith("--")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--sketchbook":
+                        sketchbookPath = value;
+                        break;
+                    case "--output":
+                        outputPath = value;
+                        break;
+                    case "--manifest":
+                        readManifest(new File(value));
+                        break;
+                    case "--arch":
+                        RAPreprocessor.addArch(value, defines);
+                        break;
+                    case "--define":
+                        RAPreprocessor.addDefines(value, defines);
+                        break;
+                    case "--budget":
+                        budget = RAFootprint.parseBudget(value);
+                        break;
+                    case "--log":
+                        RALog.setLevel(RALog.parseLevel(value));
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        if (threads < 1) {
+                            throw new IllegalArgumentException("Invalid thread count: " + value);
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            } else {
+                sketches.add(new File(arg));
+            }
+        }
+        if (sketches.isEmpty()) {
+            throw new IllegalArgumentException("No sketches to process");
+        }
+    }
+
+    private void readManifest(File manifest) throws IOException {
+        // Relative paths are relative to the manifest, blank lines and # comments are ignored
+        File dir = manifest.getAbsoluteFile().getParentFile();
+        try (BufferedReader br = new BufferedReader(new FileReader(manifest))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                File f = new File(line);
+                sketches.add(f.isAbsolute() ? f : new File(dir, line));
+            }
+        }
+    }
+
+    // Returns TRUE if all the sketches were processed
+    public boolean run() {
+        // Make sure feature.txt is available (and downloaded if needed) before starting the workers
+        List<String> names = getOutputNames();
+        RASketchProcessor check = new RASketchProcessor();
+        check.init(outputPath + File.separator + names.get(0), "");
+        check.setUpdateFolder(sketchbookPath + UPDATE_FOLDER);
+        if (!check.hasPrerequisites()) {
+            return false;
+        }
+        RALibsVersion librariesVersion = new RALibsVersion();
+        librariesVersion.init(sketchbookPath);
+        librariesVersion.display();
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, sketches.size()));
+        ArrayList<Future<Long>> results = new ArrayList<>();
+        processors = new RASketchProcessor[sketches.size()];
+        for (int i = 0; i < sketches.size(); ++i) {
+            final int index = i;
+            final String output = outputPath + File.separator + names.get(i);
+            results.add(pool.submit(() -> processSketch(index, output)));
+        }
+        pool.shutdown();
+
+        // Collect the results in the order of the sketches
+        long bytes = 0;
+        ArrayList<String> failures = new ArrayList<>();
+        for (int i = 0; i < results.size(); ++i) {
+            try {
+                bytes += results.get(i).get();
+            } catch (ExecutionException e) {
+                failures.add(sketches.get(i) + ": " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failures.add(sketches.get(i) + ": interrupted");
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int processed = sketches.size() - failures.size();
+
+        RALog.console().println("\nProcessed " + processed + " of " + sketches.size() +
+                " sketches in " + String.format("%.3f", seconds) + " seconds using " + threads + " threads");
+        if (seconds > 0) {
+            // Only the sketches that were processed, like the bytes
+            RALog.console().println(String.format("Throughput: %.1f sketches/s, %.2f MB/s",
+                    processed / seconds, bytes / seconds / (1024 * 1024)));
+        }
+        RALog.console().println("Phase totals (ms): " + RAMetrics.get().getPhaseTotalMillis());
+        if (!failures.isEmpty()) {
+            RALog.console().error("Failed sketches:");
+            for (String s : failures) {
+                RALog.console().error("  " + s);
+            }
+        }
+        return failures.isEmpty();
+    }
+
+    // Returns the number of bytes of code processed
+    private long processSketch(int index, String output) throws IOException {
+        File sketch = sketches.get(index);
+        List<String> programs = RASketchProcessor.readPrograms(RASketchProcessor.getSketchFiles(sketch));
+        long length = 0;
+        for (String program : programs) {
+            length += program.length();
+        }
+        RASketchProcessor processor = new RASketchProcessor();
+        processor.init(output, sketch.getName());
+        processor.setUpdateFolder(sketchbookPath + UPDATE_FOLDER);
+        processor.setDefines(defines);
+        // The sketches are already processed on the worker threads
+        processor.setParallelGenerators(false);
+        processor.setSketchFolder(sketch.getAbsoluteFile().getParentFile());
+        processor.setBudget(budget[RAFootprint.FLASH], budget[RAFootprint.SRAM], strictBudget);
+        if (!processor.hasPrerequisites()) {
+            throw new IOException("Missing prerequisites");
+        }
+        processor.loadDefaults();
+        RASketchScan scan = processor.scan(programs);
+        processor.displayCodeVersionString(scan);
+        processor.process(scan);
+        processors[index] = processor;
+        if (!processor.isWithinBudget()) {
+            throw new IOException("Estimated size is over the budget");
+        }
+        return length;
+    }
+
+    // Watches the processed sketches until the command is stopped
+    private void watch() {
+        File updateFolder = new File(sketchbookPath + UPDATE_FOLDER);
+        for (int i = 0; i < sketches.size(); ++i) {
+            if (processors[i] == null) {
+                // failed the first time
+                continue;
+            }
+            try {
+                new RASketchWatcher(processors[i], sketches.get(i), updateFolder).start();
+            } catch (IOException e) {
+                RALog.console().error("Unable to watch " + sketches.get(i) + ": " + e.getMessage());
+            }
+        }
+        RALog.console().println("Press Ctrl+C to stop watching.");
+        try {
+            Thread.currentThread().join();
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    // Output folder names, based on the sketch names and unique for each sketch
+    private List<String> getOutputNames() {
+        ArrayList<String> names = new ArrayList<>();
+        HashSet<String> used = new HashSet<>();
+        for (File sketch : sketches) {
+            String name = sketch.getName();
+            int dot = name.lastIndexOf('.');
+            if (dot > 0) {
+                name = name.substring(0, dot);
+            }
+            String unique = name;
+            for (int i = 2; !used.add(unique); ++i) {
+                unique = name + "-" + i;
+            }
+            names.add(unique);
+        }
+        return names;
+    }
+}
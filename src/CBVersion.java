@@ -21,6 +21,8 @@
  * SOFTWARE.
  */
 
+package info.curtbinder.arduino.tool;
+
 public class CBVersion implements Comparable {
     private String version;
     private int major;
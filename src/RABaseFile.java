@@ -26,7 +26,7 @@ package info.curtbinder.arduino.tool;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
-abstract class RABaseFile {
+abstract class RABaseFile implements RASketchListener {
     public static final String FILE_HEADER = "" +
             "/*\n" +
             " * Copyright 2020 Reef Angel\n" +
@@ -45,9 +45,30 @@ abstract class RABaseFile {
             " */\n" +
             "\n";
 
-    protected String getAutoGeneratedString(String filename) {
-        return "// AutoGenerated file by Arduino (Reef Angel)\n" +
-                "// Generated on " + getDateString() + " for INO file: " + filename + "\n";
+    protected static final byte[] FILE_HEADER_BYTES = RAHeaderWriter.encode(FILE_HEADER);
+    protected static final byte[] NEWLINE_BYTES = RAHeaderWriter.encode("\n");
+    // No date is included, the file only changes when the detected values change
+    private static final RAHeaderWriter.Template AUTO_GENERATED_TEMPLATE = new RAHeaderWriter.Template("" +
+            "// AutoGenerated file by Arduino (Reef Angel)\n" +
+            "// Generated for INO file: %s\n");
+
+    // Messages go to the console unless another log is set
+    private RALog log;
+
+    // Sends the messages to the log instead of the console (NULL for the console)
+    public void setLog(RALog log) {
+        this.log = log;
+    }
+
+    protected RALog log() {
+        return (log != null) ? log : RALog.console();
+    }
+
+    // Writes the auto generated comment and the license header
+    protected void writeFileStart(RAHeaderWriter out, String filename) {
+        AUTO_GENERATED_TEMPLATE.write(out, filename);
+        out.write(NEWLINE_BYTES);
+        out.write(FILE_HEADER_BYTES);
     }
     
     protected String getDateString() {
@@ -58,7 +79,40 @@ abstract class RABaseFile {
     abstract public void init(String sketchFolder, String sketchFileName);
     abstract public void loadDefaults();
     abstract public boolean hasPrerequisites();
-    abstract public void process(String code);
-    abstract public String generateFile();
+    // Processes the code by receiving the events from the sketch scan
+    public void process(RASketchScan scan) {
+        scan.dispatch(this);
+    }
+
+    // Returns TRUE if the parts of the scan used by this file are different
+    public boolean hasChangedInputs(RASketchScan previous, RASketchScan scan) {
+        return true;
+    }
+
+    public void onScanStart() {
+    }
+
+    public void onDirective(String line) {
+    }
+
+    public void onKeyword(int id) {
+    }
+
+    public void onRelayBox(int box) {
+    }
+
+    public void onMenuEntry(int entry) {
+    }
+
+    public void onInclude(String path) {
+    }
+
+    public void onCodeVersion(String version) {
+    }
+
+    public void onScanEnd() {
+    }
+
+    abstract public void writeFile(RAHeaderWriter out);
     abstract public String getFileName();
-}
\ No newline at end of file
+}
@@ -41,6 +41,31 @@ public class RACustomSettings extends RABaseFile {
             "\n" +
             "#endif  // __RA_CUSTOMSETTINGS_H__\n";
 
+    // TODO fix up to allow for custom portal and mqtt server
+    private static final String SERVER_SETTINGS = "" +
+            "// Portal & Cloud Server\n" +
+            "const IPAddress PortalServer(104,36,18,155); // forum.reefangel.com\n" +
+            "static byte MQTTServer[] = {104,36,18,211}; // cloud.reefangel.com\n" +
+            "const IPAddress WebWizardServer(162,213,37,72); // webwizard.reefangel.com\n" +
+            "#define MQTTPORT 1883 // MQTT server port\n";
+    // TODO fix up to allow for setting cloud wifi SSID and password
+    private static final String CLOUD_WIFI_SETTINGS = "" +
+            "#if defined(ARDUINO_ARCH_SAMD)\n" +
+            "// Cloud Wifi Attachment\n" +
+            "// Max number of characters for username and password is 32\n" +
+            "static char WIFI_SSID[] = \"testing2\"; //  your network SSID (name)\n" +
+            "static char WIFI_PASS[] = \"a01b02c03d\"; // your network password\n" +
+            "#endif\n";
+    private static final RAHeaderWriter.Template CLOUD_AUTHENTICATION_TEMPLATE = new RAHeaderWriter.Template("" +
+            "// Cloud authentication\n" +
+            "// Max number of characters for username and password is 16\n" +
+            "static char CLOUD_USERNAME[]  = \"%s\"; // your forum username\n" +
+            "static char CLOUD_PASSWORD[]  = \"%s\"; // your forum password\n");
+    // Everything before and after the cloud authentication is constant
+    private static final byte[] SETTINGS_START_BYTES = RAHeaderWriter.encode(
+            SETTINGS_HEADER + SERVER_SETTINGS + "\n" + CLOUD_WIFI_SETTINGS + "\n");
+    private static final byte[] SETTINGS_END_BYTES = RAHeaderWriter.encode("\n" + SETTINGS_FOOTER);
+
     private static final String CLOUD_LINE_START = "// RA_CLOUD_";
     private static final String LIBRARY_SETTINGS_FOLDER = "/libraries/RA_CustomSettings/";
     private static final String LIBRARY_SETTINGS_FILENAME = "RA_CustomSettings.h";
@@ -58,8 +83,8 @@ public class RACustomSettings extends RABaseFile {
         // Create Settings folder, if non existant
         File dir = new File(getLibraryFolder());
         if (! dir.exists() ) {
-            System.out.println("Custom Settings folder doesn't exist, creating it now.\n  --> " + getLibraryFolder());
-            dir.mkdir();
+            log().println("Custom Settings folder doesn't exist, creating it now.\n  --> " + getLibraryFolder());
+            dir.mkdirs();
         }
         return true;
     }
@@ -82,70 +107,36 @@ public class RACustomSettings extends RABaseFile {
         cloudPassword = "123456";
     }
 
-    public void process(String code) {
-        // Look through the lines of code for the cloud authentication lines
-        // Update the values stored
-        String[] lines = code.split("\n");
-        for (String s : lines) {
-            if (s.startsWith(CLOUD_LINE_START)) {
-                // Make sure we only look at the label lines
-                String[] parts = s.substring(CLOUD_LINE_START.length()).split("=");
-                // look up the label
-                if (parts.length > 1) {
-                    // parts[0] - KEY (label)
-                    // parts[1] - value (string to be used)
-                    if (parts[0].equals("USERNAME")) {
-                        cloudUsername = parts[1];
-                        System.out.println("Cloud Username: " + parts[1]);
-                    } else if (parts[0].equals("PASSWORD")) {
-                        cloudPassword = parts[1];
-                        System.out.println("Cloud Password: " + parts[1]);
-                    }
+    @Override
+    public boolean hasChangedInputs(RASketchScan previous, RASketchScan scan) {
+        return !previous.hasSameDirectives(scan, CLOUD_LINE_START);
+    }
+
+    @Override
+    public void onDirective(String line) {
+        // Update the values stored from the cloud authentication lines
+        if (line.startsWith(CLOUD_LINE_START)) {
+            // Make sure we only look at the label lines
+            String[] parts = line.substring(CLOUD_LINE_START.length()).split("=");
+            // look up the label
+            if (parts.length > 1) {
+                // parts[0] - KEY (label)
+                // parts[1] - value (string to be used)
+                if (parts[0].equals("USERNAME")) {
+                    cloudUsername = parts[1];
+                    log().println("Cloud Username: " + parts[1]);
+                } else if (parts[0].equals("PASSWORD")) {
+                    cloudPassword = parts[1];
+                    log().println("Cloud Password: " + parts[1]);
                 }
             }
         }
     }
 
-    public String generateFile() {
-        StringBuilder sb = new StringBuilder();
-        sb.append(getAutoGeneratedString(sketchFileName));
-        sb.append("\n");
-        sb.append(FILE_HEADER);
-        sb.append(SETTINGS_HEADER);
-        sb.append(generateServerSettings());
-        sb.append("\n");
-        sb.append(generateCloudWifiSettings());
-        sb.append("\n");
-        sb.append(generateCloudAuthenticationSettings());
-        sb.append("\n");
-        sb.append(SETTINGS_FOOTER);
-
-        return sb.toString();
-    }
-
-    // TODO fix up to allow for custom portal and mqtt server
-    private String generateServerSettings() {
-        return  "// Portal & Cloud Server\n" +
-                "const IPAddress PortalServer(104,36,18,155); // forum.reefangel.com\n" +
-                "static byte MQTTServer[] = {104,36,18,211}; // cloud.reefangel.com\n" +
-                "const IPAddress WebWizardServer(162,213,37,72); // webwizard.reefangel.com\n" +
-                "#define MQTTPORT 1883 // MQTT server port\n";
-    }
-
-    // TODO fix up to allow for setting cloud wifi SSID and password
-    private String generateCloudWifiSettings() {
-        return  "#if defined(ARDUINO_ARCH_SAMD)\n" +
-                "// Cloud Wifi Attachment\n" +
-                "// Max number of characters for username and password is 32\n" +
-                "static char WIFI_SSID[] = \"testing2\"; //  your network SSID (name)\n" +
-                "static char WIFI_PASS[] = \"a01b02c03d\"; // your network password\n" +
-                "#endif\n";
-    }
-
-    private String generateCloudAuthenticationSettings() {
-        return  "// Cloud authentication\n" +
-                "// Max number of characters for username and password is 16\n" +
-                "static char CLOUD_USERNAME[]  = \"" + cloudUsername + "\"; // your forum username\n" +
-                "static char CLOUD_PASSWORD[]  = \"" + cloudPassword + "\"; // your forum password\n";
+    public void writeFile(RAHeaderWriter out) {
+        writeFileStart(out, sketchFileName);
+        out.write(SETTINGS_START_BYTES);
+        CLOUD_AUTHENTICATION_TEMPLATE.write(out, cloudUsername, cloudPassword);
+        out.write(SETTINGS_END_BYTES);
     }
 }
@@ -0,0 +1,186 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Properties;
+
+/*
+Downloads a file from the server.
+
+    - Connect and read timeouts, so a slow server cannot hang the tool
+    - Conditional GET with the ETag / Last-Modified of the previous download, the
+      file is left alone when the server reports it has not been modified
+    - The file is streamed to a temporary file next to the target, checked against the
+      length from the server and then moved over the target, so an interrupted
+      download never leaves a truncated file behind
+
+The validators from the server are stored in a small properties file next to the target.
+Any URL can be used (http, https, file), which allows testing against a local server.
+*/
+public class RADownloader {
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_READ_TIMEOUT = 15000;
+    private static final String META_EXTENSION = ".meta";
+    private static final String META_ETAG = "etag";
+    private static final String META_LAST_MODIFIED = "last-modified";
+
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    public RADownloader() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    public RADownloader(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    // Returns TRUE if the file was downloaded, FALSE if the server copy was not modified
+    public boolean download(URL url, File target) throws IOException {
+        RAMetrics.Phase phase = RAMetrics.startPhase("download", url.toString());
+        boolean success = false;
+        try {
+            boolean downloaded = transfer(url, target);
+            success = true;
+            return downloaded;
+        } finally {
+            RAMetrics.get().addDownload(phase.end(), success);
+        }
+    }
+
+    // Opens the URL for reading with the same timeouts, without saving it to a file.
+    // Used to stream a file through something else (like the updater unzipping it).
+    public InputStream openStream(URL url) throws IOException {
+        URLConnection conn = url.openConnection();
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        conn.setUseCaches(false);
+        if (conn instanceof HttpURLConnection) {
+            int code = ((HttpURLConnection) conn).getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                ((HttpURLConnection) conn).disconnect();
+                throw new IOException("Server returned HTTP " + code + " for " + url);
+            }
+        }
+        return conn.getInputStream();
+    }
+
+    private boolean transfer(URL url, File target) throws IOException {
+        File metaFile = new File(target.getPath() + META_EXTENSION);
+        Properties meta = loadMeta(metaFile);
+        URLConnection conn = url.openConnection();
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        conn.setUseCaches(false);
+        if (conn instanceof HttpURLConnection && target.isFile() && target.length() > 0L) {
+            // Only ask for the file if it changed since the last download
+            String etag = meta.getProperty(META_ETAG);
+            String lastModified = meta.getProperty(META_LAST_MODIFIED);
+            if (etag != null) {
+                conn.setRequestProperty("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                conn.setRequestProperty("If-Modified-Since", lastModified);
+            }
+        }
+
+        try {
+            if (conn instanceof HttpURLConnection) {
+                int code = ((HttpURLConnection) conn).getResponseCode();
+                if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    return false;
+                }
+                if (code != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("Server returned HTTP " + code + " for " + url);
+                }
+            }
+
+            long expectedLength = conn.getContentLengthLong();
+            long length = 0;
+            File temp = RAFiles.createTempFile(target);
+            try {
+                try (InputStream in = conn.getInputStream(); OutputStream out = new FileOutputStream(temp)) {
+                    byte[] buffer = new byte[8192];
+                    int count;
+                    while ((count = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, count);
+                        length += count;
+                    }
+                }
+                if (length == 0 || (expectedLength >= 0 && length != expectedLength)) {
+                    throw new IOException("Incomplete download of " + url + " (" + length + " bytes)");
+                }
+                RAFiles.replace(temp, target);
+            } finally {
+                temp.delete();
+            }
+
+            meta.clear();
+            putIfSet(meta, META_ETAG, conn.getHeaderField("ETag"));
+            putIfSet(meta, META_LAST_MODIFIED, conn.getHeaderField("Last-Modified"));
+            saveMeta(metaFile, meta);
+            return true;
+        } finally {
+            if (conn instanceof HttpURLConnection) {
+                ((HttpURLConnection) conn).disconnect();
+            }
+        }
+    }
+
+    private static void putIfSet(Properties meta, String key, String value) {
+        if (value != null && !value.isEmpty()) {
+            meta.setProperty(key, value);
+        }
+    }
+
+    private static Properties loadMeta(File metaFile) {
+        Properties meta = new Properties();
+        if (metaFile.isFile()) {
+            try (InputStream in = new FileInputStream(metaFile)) {
+                meta.load(in);
+            } catch (IOException e) {
+                // Ignore, the file will be downloaded again
+            }
+        }
+        return meta;
+    }
+
+    private static void saveMeta(File metaFile, Properties meta) {
+        try (OutputStream out = new FileOutputStream(metaFile)) {
+            meta.store(out, null);
+        } catch (IOException e) {
+            // Only used for the next conditional download
+        }
+    }
+}
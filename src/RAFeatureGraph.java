@@ -0,0 +1,334 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+Relations between the features, read from feature_rules.txt next to feature.txt.
+
+Each line of the rules file is one of:
+    DEFINE: Description      declares a define that is not in feature.txt
+    DEFINE > DEFINE ...      the first define implies the others
+    DEFINE ! DEFINE ...      the first define excludes the others
+    <feature.txt>            the place of the feature.txt defines in the generated file
+    # comment
+Names starting with @ are conditions. They are used in the relations, but are not
+written to the generated file. @always is always set.
+
+The defines are numbered in the order they are written to the file. The relations are
+sorted once (topological order) so every define comes after the defines that imply or
+exclude it. Resolving the features is then one pass over that order:
+    active = (detected or implied by an active define) and not excluded by an active define
+When the rules file is missing, the built in rules are used.
+*/
+public class RAFeatureGraph {
+    public static final String ALWAYS = "@always";
+    static final String RULES_FILENAME = "feature_rules.txt";
+    private static final String FEATURES_PLACEHOLDER = "<feature.txt>";
+    private static final String CONDITION_PREFIX = "@";
+    private static final String DEFAULT_RULES = "" +
+            "WDT: Watchdog Timer\n" +
+            "VersionMenu: Version Menu\n" +
+            FEATURES_PLACEHOLDER + "\n" +
+            "InstalledRelayExpansionModules: Number of Relay Expansion Modules\n" +
+            "CUSTOM_MENU_ENTRIES: Number of Menu Options\n" +
+            "@StandardMenu: Standard Menu\n" +
+            "WavemakerSetup: Wavemaker Menu\n" +
+            "ATOSetup: ATO Menu\n" +
+            "OverheatSetup: Overheat Menu\n" +
+            "StandardLightSetup: Standard Light Menu\n" +
+            "SIMPLE_MENU: Simple Menu\n" +
+            "@always > WDT VersionMenu SIMPLE_MENU\n" +
+            "@StandardMenu > WavemakerSetup ATOSetup OverheatSetup StandardLightSetup\n" +
+            "@StandardMenu ! SIMPLE_MENU\n" +
+            "CUSTOM_MENU_ENTRIES ! @StandardMenu SIMPLE_MENU\n";
+
+    private static RAFeatureGraph lastGraph;
+
+    // Identify the inputs of the last graph, it is reused when they are the same
+    private final List<String[]> sourceFeatures;
+    private final String rulesPath;
+    private final long rulesSize;
+    private final long rulesModified;
+
+    private final String[] defines;
+    private final HashMap<String, Integer> nodeIds;
+    private final String[] descriptions;
+    private final int[] featureNodes;
+    private final int firstFeatureNode;
+    // Nodes in topological order
+    private final int[] order;
+    // Edges of each node, impliesStart[n] .. impliesStart[n+1] is the range in implies
+    private final int[] impliesStart;
+    private final int[] implies;
+    private final int[] excludesStart;
+    private final int[] excludes;
+
+    private RAFeatureGraph(List<String[]> sourceFeatures, String rulesPath, long rulesSize, long rulesModified,
+                           Builder builder) {
+        this.sourceFeatures = sourceFeatures;
+        this.rulesPath = rulesPath;
+        this.rulesSize = rulesSize;
+        this.rulesModified = rulesModified;
+        int nodes = builder.defines.size();
+        defines = builder.defines.toArray(new String[nodes]);
+        nodeIds = builder.nodes;
+        descriptions = builder.descriptions.toArray(new String[nodes]);
+        featureNodes = builder.featureNodes;
+        firstFeatureNode = builder.firstFeatureNode;
+        impliesStart = new int[nodes + 1];
+        implies = flatten(builder.implies, impliesStart);
+        excludesStart = new int[nodes + 1];
+        excludes = flatten(builder.excludes, excludesStart);
+        order = sort(nodes);
+    }
+
+    // Compiles the rules file (or the built in rules) with the features from feature.txt
+    public static synchronized RAFeatureGraph load(List<String[]> features, File rulesFile) {
+        String path = rulesFile.getAbsolutePath();
+        long size = rulesFile.isFile() ? rulesFile.length() : -1;
+        long modified = rulesFile.lastModified();
+        if (lastGraph != null && lastGraph.sourceFeatures == features && lastGraph.rulesPath.equals(path)
+                && lastGraph.rulesSize == size && lastGraph.rulesModified == modified) {
+            return lastGraph;
+        }
+
+        String rules = DEFAULT_RULES;
+        if (size >= 0) {
+            try {
+                rules = new String(Files.readAllBytes(rulesFile.toPath()), Charset.defaultCharset());
+            } catch (IOException e) {
+                RALog.console().error("Unable to read " + RULES_FILENAME + ", using the default rules: " + e.getMessage());
+            }
+        }
+        lastGraph = new RAFeatureGraph(features, path, size, modified, parse(rules, features));
+        return lastGraph;
+    }
+
+    public int getNodeCount() {
+        return defines.length;
+    }
+
+    // Node of the define, -1 if the define is not known
+    public int indexOf(String define) {
+        Integer node = nodeIds.get(define);
+        return (node != null) ? node : -1;
+    }
+
+    // Node of the feature from feature.txt (same order as the features)
+    public int getFeatureNode(int feature) {
+        return featureNodes[feature];
+    }
+
+    // Nodes before this one are written before the features from feature.txt
+    public int getFirstFeatureNode() {
+        return firstFeatureNode;
+    }
+
+    public String getDefine(int node) {
+        return defines[node];
+    }
+
+    public String getDescription(int node) {
+        return descriptions[node];
+    }
+
+    public boolean isCondition(int node) {
+        return defines[node].startsWith(CONDITION_PREFIX);
+    }
+
+    // Returns the active nodes for the detected nodes
+    public BitSet resolve(BitSet detected) {
+        BitSet active = new BitSet(defines.length);
+        BitSet implied = new BitSet(defines.length);
+        BitSet excluded = new BitSet(defines.length);
+        for (int n : order) {
+            if ((detected.get(n) || implied.get(n)) && !excluded.get(n)) {
+                active.set(n);
+                for (int e = impliesStart[n]; e < impliesStart[n + 1]; ++e) {
+                    implied.set(implies[e]);
+                }
+                for (int e = excludesStart[n]; e < excludesStart[n + 1]; ++e) {
+                    excluded.set(excludes[e]);
+                }
+            }
+        }
+        return active;
+    }
+
+    private static Builder parse(String rules, List<String[]> features) {
+        Builder builder = new Builder();
+        ArrayList<String[]> relations = new ArrayList<>();
+        boolean addedFeatures = false;
+        try (BufferedReader br = new BufferedReader(new StringReader(rules))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (line.equals(FEATURES_PLACEHOLDER)) {
+                    if (!addedFeatures) {
+                        builder.addFeatures(features);
+                        addedFeatures = true;
+                    }
+                    continue;
+                }
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    builder.addNode(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+                    continue;
+                }
+                String[] items = line.split("\\s+");
+                if (items.length > 2 && (items[1].equals(">") || items[1].equals("!"))) {
+                    // Relations are added after all the declarations, to keep the file order
+                    relations.add(items);
+                } else {
+                    RALog.console().error("Unknown feature rule: " + line);
+                }
+            }
+        } catch (IOException e) {
+            // Reading from a string
+            throw new IllegalStateException(e);
+        }
+        if (!addedFeatures) {
+            builder.addFeatures(features);
+        }
+        builder.addNode(ALWAYS, "");
+
+        for (String[] items : relations) {
+            int from = builder.addNode(items[0], items[0]);
+            List<List<Integer>> edges = items[1].equals(">") ? builder.implies : builder.excludes;
+            for (int i = 2; i < items.length; ++i) {
+                edges.get(from).add(builder.addNode(items[i], items[i]));
+            }
+        }
+        return builder;
+    }
+
+    private static int[] flatten(List<List<Integer>> edges, int[] start) {
+        int count = 0;
+        for (int n = 0; n < edges.size(); ++n) {
+            start[n] = count;
+            count += edges.get(n).size();
+        }
+        start[edges.size()] = count;
+        int[] targets = new int[count];
+        int e = 0;
+        for (List<Integer> list : edges) {
+            for (int target : list) {
+                targets[e++] = target;
+            }
+        }
+        return targets;
+    }
+
+    // Kahn's algorithm over both kinds of edges
+    private int[] sort(int nodes) {
+        int[] incoming = new int[nodes];
+        for (int target : implies) {
+            ++incoming[target];
+        }
+        for (int target : excludes) {
+            ++incoming[target];
+        }
+        int[] sorted = new int[nodes];
+        int head = 0;
+        int tail = 0;
+        for (int n = 0; n < nodes; ++n) {
+            if (incoming[n] == 0) {
+                sorted[tail++] = n;
+            }
+        }
+        while (head < tail) {
+            int n = sorted[head++];
+            tail = release(n, implies, impliesStart, incoming, sorted, tail);
+            tail = release(n, excludes, excludesStart, incoming, sorted, tail);
+        }
+        if (tail < nodes) {
+            // The nodes left over are in a cycle, add them in file order so they are not lost
+            StringBuilder sb = new StringBuilder();
+            for (int n = 0; n < nodes; ++n) {
+                if (incoming[n] > 0) {
+                    sorted[tail++] = n;
+                    sb.append(' ').append(defines[n]);
+                }
+            }
+            RALog.console().error("Feature rules contain a cycle, check:" + sb);
+        }
+        return sorted;
+    }
+
+    private static int release(int n, int[] targets, int[] start, int[] incoming, int[] sorted, int tail) {
+        for (int e = start[n]; e < start[n + 1]; ++e) {
+            if (--incoming[targets[e]] == 0) {
+                sorted[tail++] = targets[e];
+            }
+        }
+        return tail;
+    }
+
+    private static class Builder {
+        final ArrayList<String> defines = new ArrayList<>();
+        final ArrayList<String> descriptions = new ArrayList<>();
+        final HashMap<String, Integer> nodes = new HashMap<>();
+        final List<List<Integer>> implies = new ArrayList<>();
+        final List<List<Integer>> excludes = new ArrayList<>();
+        int[] featureNodes = new int[0];
+        int firstFeatureNode;
+
+        // Returns the node of the define, the first declaration keeps its place and description
+        int addNode(String define, String description) {
+            Integer node = nodes.get(define);
+            if (node == null) {
+                node = defines.size();
+                nodes.put(define, node);
+                defines.add(define);
+                descriptions.add(description);
+                implies.add(new ArrayList<>());
+                excludes.add(new ArrayList<>());
+            }
+            return node;
+        }
+
+        void addFeatures(List<String[]> features) {
+            firstFeatureNode = defines.size();
+            featureNodes = new int[features.size()];
+            for (int i = 0; i < features.size(); ++i) {
+                String[] feature = features.get(i);
+                featureNodes[i] = addNode(feature[RAFeatureIndex.ID_DEFINE], feature[RAFeatureIndex.ID_DESCRIPTION]);
+            }
+        }
+    }
+}
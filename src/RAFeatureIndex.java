@@ -0,0 +1,235 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+Feature definitions from feature.txt along with the compiled keyword matcher.
+
+Parsing feature.txt and compiling the matcher is only done when the text file changes.
+The results are saved in a binary index file next to feature.txt which is keyed by
+the size, modified time and SHA-256 hash of feature.txt.
+    - size and modified time match -> the index is loaded as is
+    - the hash matches (file was touched or downloaded again) -> the index is reused
+    - otherwise feature.txt is parsed and the index is written again
+The last index loaded is also kept in memory for the following runs.
+*/
+public class RAFeatureIndex {
+    public static final int ID_DEFINE = 0;
+    public static final int ID_KEYWORD = 1;
+    public static final int ID_DESCRIPTION = 2;
+    private static final int INDEX_MAGIC = 0x52414649; // RAFI
+    private static final int INDEX_FORMAT = 1;
+
+    private static RAFeatureIndex lastIndex;
+
+    private final String sourcePath;
+    private final long sourceSize;
+    private final long sourceModified;
+    private final byte[] sourceHash;
+    private final List<String> specialKeywords;
+    private final List<String[]> features;
+    private final RAKeywordMatcher matcher;
+
+    private RAFeatureIndex(String sourcePath, long sourceSize, long sourceModified, byte[] sourceHash,
+                           List<String> specialKeywords, List<String[]> features, RAKeywordMatcher matcher) {
+        this.sourcePath = sourcePath;
+        this.sourceSize = sourceSize;
+        this.sourceModified = sourceModified;
+        this.sourceHash = sourceHash;
+        this.specialKeywords = specialKeywords;
+        this.features = features;
+        this.matcher = matcher;
+    }
+
+    // Feature definitions in the order of the file (define, keyword, description)
+    public List<String[]> getFeatures() {
+        return features;
+    }
+
+    // Keyword ids 0 to features-1 are the features, followed by the special keywords
+    public RAKeywordMatcher getMatcher() {
+        return matcher;
+    }
+
+    public int getSpecialKeywordId(int index) {
+        return features.size() + index;
+    }
+
+    public static synchronized RAFeatureIndex load(File source, File indexFile, List<String> specialKeywords)
+            throws IOException {
+        String path = source.getAbsolutePath();
+        long size = source.length();
+        long modified = source.lastModified();
+        if (lastIndex != null && lastIndex.sourcePath.equals(path) && lastIndex.sourceSize == size
+                && lastIndex.sourceModified == modified && lastIndex.specialKeywords.equals(specialKeywords)) {
+            RAMetrics.get().addIndexCacheHit();
+            return lastIndex;
+        }
+
+        RAFeatureIndex index = read(indexFile, path);
+        if (index != null && !index.specialKeywords.equals(specialKeywords)) {
+            index = null;
+        }
+        if (index == null || index.sourceSize != size || index.sourceModified != modified) {
+            byte[] data = Files.readAllBytes(source.toPath());
+            byte[] hash = RAHash.sha256(data);
+            if (index != null && Arrays.equals(index.sourceHash, hash)) {
+                // Same contents, only the file details changed
+                index = new RAFeatureIndex(path, data.length, modified, hash,
+                        index.specialKeywords, index.features, index.matcher);
+                RAMetrics.get().addIndexCacheHit();
+            } else {
+                index = build(path, data.length, modified, hash, data, specialKeywords);
+                RAMetrics.get().addIndexCacheMiss();
+            }
+            try {
+                index.write(indexFile);
+            } catch (IOException e) {
+                // The index is only a cache, still use the results
+                RALog.console().error("Unable to save feature index: " + e.getMessage());
+            }
+        } else {
+            RAMetrics.get().addIndexCacheHit();
+        }
+        lastIndex = index;
+        return index;
+    }
+
+    // Index without any features, used when feature.txt cannot be read
+    public static RAFeatureIndex empty(List<String> specialKeywords) {
+        try {
+            return build("", 0, 0, new byte[0], new byte[0], specialKeywords);
+        } catch (IOException e) {
+            // Nothing is read from disk
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static RAFeatureIndex build(String path, long size, long modified, byte[] hash, byte[] data,
+                                        List<String> specialKeywords) throws IOException {
+        ArrayList<String[]> list = new ArrayList<>();
+        BufferedReader br = new BufferedReader(new StringReader(new String(data, Charset.defaultCharset())));
+        String line = null;
+        while ((line = br.readLine()) != null) {
+            String[] items = line.split(",");
+            if (items.length <= ID_DESCRIPTION) {
+                // skip blank or incomplete lines
+                continue;
+            }
+            list.add(new String[]{items[ID_DEFINE], items[ID_KEYWORD], items[ID_DESCRIPTION]});
+        }
+        br.close();
+
+        // Compile all the keywords into one matcher, so the code only gets scanned once
+        ArrayList<String> keywords = new ArrayList<>();
+        for (String[] feature : list) {
+            keywords.add(feature[ID_KEYWORD]);
+        }
+        keywords.addAll(specialKeywords);
+        return new RAFeatureIndex(path, size, modified, hash, new ArrayList<>(specialKeywords),
+                Collections.unmodifiableList(list), RAKeywordMatcher.compile(keywords));
+    }
+
+    // Returns NULL if the index is missing or cannot be used
+    private static RAFeatureIndex read(File indexFile, String path) {
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        // Read at once, so the lengths in the index can be checked against the bytes left
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(Files.readAllBytes(indexFile.toPath())))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_FORMAT) {
+                return null;
+            }
+            long size = in.readLong();
+            long modified = in.readLong();
+            byte[] hash = new byte[RAKeywordMatcher.readLength(in, 1)];
+            in.readFully(hash);
+            // Each string is at least its 2 byte length
+            int count = RAKeywordMatcher.readLength(in, 2);
+            ArrayList<String> specials = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                specials.add(in.readUTF());
+            }
+            count = RAKeywordMatcher.readLength(in, 6);
+            ArrayList<String[]> list = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                list.add(new String[]{in.readUTF(), in.readUTF(), in.readUTF()});
+            }
+            RAKeywordMatcher matcher = RAKeywordMatcher.read(in);
+            if (matcher.getKeywordCount() != list.size() + specials.size()) {
+                return null;
+            }
+            return new RAFeatureIndex(path, size, modified, hash, specials,
+                    Collections.unmodifiableList(list), matcher);
+        } catch (IOException | RuntimeException e) {
+            // Corrupt or old index, it will be rebuilt
+            return null;
+        }
+    }
+
+    private void write(File indexFile) throws IOException {
+        File temp = RAFiles.createTempFile(indexFile);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_FORMAT);
+                out.writeLong(sourceSize);
+                out.writeLong(sourceModified);
+                out.writeInt(sourceHash.length);
+                out.write(sourceHash);
+                out.writeInt(specialKeywords.size());
+                for (String s : specialKeywords) {
+                    out.writeUTF(s);
+                }
+                out.writeInt(features.size());
+                for (String[] feature : features) {
+                    out.writeUTF(feature[ID_DEFINE]);
+                    out.writeUTF(feature[ID_KEYWORD]);
+                    out.writeUTF(feature[ID_DESCRIPTION]);
+                }
+                matcher.write(out);
+            }
+            RAFiles.replace(temp, indexFile);
+        } finally {
+            temp.delete();
+        }
+    }
+}
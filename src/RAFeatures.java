@@ -23,15 +23,15 @@
 
 package info.curtbinder.arduino.tool;
 
-import java.io.BufferedReader;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.net.URL;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
 
 public class RAFeatures extends RABaseFile {
     private static final String FEATURES_HEADER = "" +
@@ -40,24 +40,71 @@ public class RAFeatures extends RABaseFile {
     private static final String FEATURES_FOOTER = "" +
             "\n" +
             "#endif  // __REEFANGEL_FEATURES_H__\n";
-    private static final String FEATURE_ITEM_TEMPLATE = "#define %s\n";
+    private static final RAHeaderWriter.Template FEATURE_ITEM_TEMPLATE = new RAHeaderWriter.Template("#define %s\n");
+    private static final RAHeaderWriter.Template BUILD_DATE_ITEM_TEMPLATE =
+            new RAHeaderWriter.Template("#define CODE_BUILD_DATE \"%s\"\n");
     private static final String LIBRARY_FEATURES_FOLDER = "/libraries/ReefAngel_Features/";
     private static final String LIBRARY_FEATURES_FILENAME = "ReefAngel_Features.h";
+    private static final String LIBRARY_BUILD_DATE_FILENAME = "ReefAngel_BuildDate.h";
+    private static final String BUILD_DATE_HEADER = "" +
+            "#ifndef __REEFANGEL_BUILDDATE_H__\n" +
+            "#define __REEFANGEL_BUILDDATE_H__\n";
+    private static final String BUILD_DATE_FOOTER = "" +
+            "\n" +
+            "#endif  // __REEFANGEL_BUILDDATE_H__\n";
+    private static final byte[] FEATURES_HEADER_BYTES = RAHeaderWriter.encode(FEATURES_HEADER);
+    // The build date is kept in a separate file so the features file can be compared without it.
+    // It is still included, so it is only restamped when a generated file changes (see
+    // RASketchProcessor.saveBuildDate) and CODE_BUILD_DATE is the date the features, labels or
+    // settings last changed, not the date the sketch was built.
+    private static final byte[] FEATURES_FOOTER_BYTES = RAHeaderWriter.encode("" +
+            "#include \"" + LIBRARY_BUILD_DATE_FILENAME + "\"\n" +
+            "\n" +
+            FEATURES_FOOTER);
+    private static final byte[] BUILD_DATE_HEADER_BYTES = RAHeaderWriter.encode(BUILD_DATE_HEADER + "\n");
+    private static final byte[] BUILD_DATE_FOOTER_BYTES = RAHeaderWriter.encode(BUILD_DATE_FOOTER);
     private static final String UPDATE_FEATURE_FOLDER = "/update/";
-    private static final String UPDATE_FEATURE_FILENAME = "feature.txt";
-    private static final String MAIN_FEATURE_URL = "https://curtbinder.info/reefangel/feature.txt";
-
-    private final int ID_DEFINE = 0;
-    private final int ID_KEYWORD = 1;
-    private final int ID_DESCRIPTION = 2;
-    private ArrayList<String[]> listFeatures;
-    private ArrayList<String> listDetectedFeatures;
+    static final String UPDATE_FEATURE_FILENAME = "feature.txt";
+    private static final String UPDATE_FEATURE_INDEX_FILENAME = "feature.idx";
+    // Conditions and counted defines used in the feature rules
+    private static final String STANDARD_MENU_CONDITION = "@StandardMenu";
+    private static final String RELAY_MODULES_DEFINE = "InstalledRelayExpansionModules";
+    private static final String MENU_ENTRIES_DEFINE = "CUSTOM_MENU_ENTRIES";
+    static final String MAIN_FEATURE_URL = "https://curtbinder.info/reefangel/feature.txt";
+    private static final String STANDARD_MENU_KEYWORD = "ReefAngel.AddStandardMenu";
+    // Keywords for the specific cases, searched for along with the features.
+    // The relay boxes and menu entries are counted by the scanner.
+    private static final List<String> SPECIAL_KEYWORDS = Collections.singletonList(STANDARD_MENU_KEYWORD);
+    // Position of the special cases in SPECIAL_KEYWORDS
+    private static final int SPECIAL_STANDARD_MENU = 0;
+
+    private final int ID_DEFINE = RAFeatureIndex.ID_DEFINE;
+    private final int ID_KEYWORD = RAFeatureIndex.ID_KEYWORD;
+    private final int ID_DESCRIPTION = RAFeatureIndex.ID_DESCRIPTION;
+    private List<String[]> listFeatures;
+    private RAFeatureGraph featureGraph;
+    private int nodeAlways;
+    private int nodeStandardMenu;
+    private int nodeRelayModules;
+    private int nodeMenuEntries;
+    private RAKeywordMatcher featureMatcher;
+    // Keyword ids of the special cases, stored after the feature keywords
+    private int idStandardMenu;
+    private int relayBoxes;
+    private int menuEntries;
+    private BitSet activeFeatures;
+    private BitSet foundKeywords;
     private String baseFolder;
+    private String updateFolder;
     private String sketchFileName;
+    private String buildDate;
+    private boolean downloadMissing;
 
     public RAFeatures() {
         baseFolder = "";
+        updateFolder = "";
         sketchFileName = "";
+        downloadMissing = true;
     }
 
     public boolean hasPrerequisites() {
@@ -66,8 +113,8 @@ public class RAFeatures extends RABaseFile {
         // Create folder, if non existant
         File dir = new File(getLibraryFolder());
         if (! dir.exists() ) {
-            System.out.println("Controller Features folder doesn't exist, creating it now.\n  --> " + getLibraryFolder());
-            dir.mkdir();
+            log().println("Controller Features folder doesn't exist, creating it now.\n  --> " + getLibraryFolder());
+            dir.mkdirs();
         }
 
         int iDownloaded = 0;
@@ -75,8 +122,8 @@ public class RAFeatures extends RABaseFile {
             // Check for the features.txt file
             dir = new File(getDefaultFolder());
             if (! dir.exists()) {
-                System.out.println("Creating missing update folder");
-                dir.mkdir();
+                log().println("Creating missing update folder");
+                dir.mkdirs();
             } else {
                 // Directory exists, now check if the master feature file exists
                 File f = new File(getDefaultFilename());
@@ -88,12 +135,17 @@ public class RAFeatures extends RABaseFile {
             if (!fRet && (iDownloaded < 1)) {
                 // We don't have the feature.txt file, so give a warning about it and offer to download it
                 // But only attempt to download it once
-                System.out.println("ERROR!  Missing main feature.txt file.");
+                log().error("ERROR!  Missing main feature.txt file.");
+                if (!downloadMissing) {
+                    log().println("It is being downloaded in the background from " + MAIN_FEATURE_URL +
+                            "\nRe-run the Process Sketch plugin in a moment.");
+                    break;
+                }
                 try {
                     downloadMainFeatureFile();
-                    System.out.println("Downloaded feature.txt file. Re-checking.\n");
+                    log().println("Downloaded feature.txt file. Re-checking.\n");
                 } catch (IOException e) {
-                    System.out.println("\nERROR!  Failed to download feature.txt file automatically.\n" +
+                    log().error("\nERROR!  Failed to download feature.txt file automatically.\n" +
                     "You must download it manually from: " + MAIN_FEATURE_URL +
                     "\nThen move it to this folder: " + getDefaultFolder() +
                     "\nAfter that, re-run the Process Sketch plugin");
@@ -106,21 +158,20 @@ public class RAFeatures extends RABaseFile {
 
     private void downloadMainFeatureFile() throws IOException {
         // Downloads the main feature file to the default location
-        System.out.println("Downloading " + MAIN_FEATURE_URL);
-        System.out.println("Saving to " + getDefaultFilename());
-
-        URL url = new URL(MAIN_FEATURE_URL);
-        ReadableByteChannel rbc = Channels.newChannel(url.openStream());
-        FileOutputStream fos = new FileOutputStream(getDefaultFilename());
-        fos.getChannel().transferFrom(rbc, 0, Long.MAX_VALUE);
-        fos.close();
-        rbc.close();
+        log().println("Downloading " + MAIN_FEATURE_URL);
+        log().verbose("Saving to " + getDefaultFilename());
+
+        new RADownloader().download(new URL(MAIN_FEATURE_URL), new File(getDefaultFilename()));
     }
 
     public String getFileName() {
         return getLibraryFolder() + LIBRARY_FEATURES_FILENAME;
     }
 
+    public String getBuildDateFileName() {
+        return getLibraryFolder() + LIBRARY_BUILD_DATE_FILENAME;
+    }
+
     private String getLibraryFolder() {
         return baseFolder + LIBRARY_FEATURES_FOLDER;
     }
@@ -129,139 +180,188 @@ public class RAFeatures extends RABaseFile {
         return getDefaultFolder() + UPDATE_FEATURE_FILENAME;
     }
 
+    private String getIndexFilename() {
+        return getDefaultFolder() + UPDATE_FEATURE_INDEX_FILENAME;
+    }
+
+    private String getRulesFilename() {
+        return getDefaultFolder() + RAFeatureGraph.RULES_FILENAME;
+    }
+
+    // Files in the update folder the generated files depend on
+    public List<File> getDefinitionFiles() {
+        return Arrays.asList(new File(getDefaultFilename()), new File(getRulesFilename()), getCostsFile());
+    }
+
+    // Estimated sizes of the features, see RAFootprint
+    public File getCostsFile() {
+        return new File(getDefaultFolder() + RAFootprint.COSTS_FILENAME);
+    }
+
     private String getDefaultFolder() {
+        if (!updateFolder.isEmpty()) {
+            return updateFolder;
+        }
         return baseFolder + UPDATE_FEATURE_FOLDER;
     }
 
+    // Set to FALSE when feature.txt is downloaded somewhere else (in the background)
+    public void setDownloadMissing(boolean downloadMissing) {
+        this.downloadMissing = downloadMissing;
+    }
+
+    // Use a different folder for feature.txt instead of the update folder in the sketchbook
+    public void setUpdateFolder(String folder) {
+        updateFolder = folder.endsWith("/") ? folder : folder + "/";
+    }
+
     public void init(String sketchFolder, String sketchFileName) {
     	baseFolder = sketchFolder;
     	this.sketchFileName = sketchFileName;
     }
 
     public void loadDefaults() {
-   	    listFeatures = build();
-    	listDetectedFeatures = new ArrayList<>();
-    }
-
-    private ArrayList<String[]> build() {
-        ArrayList<String[]> list = new ArrayList<>();
-
+        RAFeatureIndex index;
         try {
-            FileReader fr = new FileReader(getDefaultFilename());
-            BufferedReader br = new BufferedReader(fr);
-            String line = null;
-            while ((line = br.readLine()) != null) {
-                String[] items = line.split(",");
-                list.add(items);
-            }
-            br.close();
+            index = RAFeatureIndex.load(new File(getDefaultFilename()), new File(getIndexFilename()),
+                    SPECIAL_KEYWORDS);
         } catch (IOException e) {
             e.printStackTrace();
+            index = RAFeatureIndex.empty(SPECIAL_KEYWORDS);
         }
-
-        return list;
+        listFeatures = index.getFeatures();
+        featureMatcher = index.getMatcher();
+        idStandardMenu = index.getSpecialKeywordId(SPECIAL_STANDARD_MENU);
+        featureGraph = RAFeatureGraph.load(listFeatures, new File(getRulesFilename()));
+        nodeAlways = featureGraph.indexOf(RAFeatureGraph.ALWAYS);
+        nodeStandardMenu = featureGraph.indexOf(STANDARD_MENU_CONDITION);
+        nodeRelayModules = featureGraph.indexOf(RELAY_MODULES_DEFINE);
+        nodeMenuEntries = featureGraph.indexOf(MENU_ENTRIES_DEFINE);
+        activeFeatures = new BitSet(featureGraph.getNodeCount());
+        foundKeywords = new BitSet(featureMatcher.getKeywordCount());
+        relayBoxes = 0;
+        menuEntries = 0;
     }
 
-    public void process(String code) {
-    	System.out.println("The following features were automatically added:");
-        addFeature(new String[]{"WDT", "", "Watchdog Timer"});
-        addFeature(new String[]{"VersionMenu", "", "Version Menu"});
-        System.out.println("\nThe following features were detected:");
+    public int getDetectedCount() {
+        int count = 0;
+        for (int n = activeFeatures.nextSetBit(0); n >= 0; n = activeFeatures.nextSetBit(n + 1)) {
+            if (!featureGraph.isCondition(n)) {
+                ++count;
+            }
+        }
+        return count;
+    }
 
-        // loop through all the features and search for them in the code
-        for (String[] feature : listFeatures) {
-            if (code.contains(feature[ID_KEYWORD])) {
-                addFeature(feature);
+    // Defines written to the file with their count (relay boxes, menu entries), 1 for the others
+    public Map<String, Integer> getActiveDefines() {
+        LinkedHashMap<String, Integer> defines = new LinkedHashMap<>();
+        for (int n = activeFeatures.nextSetBit(0); n >= 0; n = activeFeatures.nextSetBit(n + 1)) {
+            if (!featureGraph.isCondition(n)) {
+                int count = 1;
+                if (n == nodeRelayModules) {
+                    count = relayBoxes;
+                } else if (n == nodeMenuEntries) {
+                    count = menuEntries;
+                }
+                defines.put(featureGraph.getDefine(n), count);
             }
         }
+        return defines;
+    }
 
-        // handle the specific cases
-        checkForRelayExpansions(code);
-        checkForCustomMenu(code);
+    public RAKeywordMatcher getKeywordMatcher() {
+        return featureMatcher;
+    }
 
-        System.out.println("Build Date set to: " + getDateString());
+    @Override
+    public boolean hasChangedInputs(RASketchScan previous, RASketchScan scan) {
+        return !previous.hasSameKeywords(scan) || !previous.hasSameReferences(scan);
     }
 
-    private void addFeature(String[] feature) {
-        // Check to see if the feature already exists
-        if (!listDetectedFeatures.contains(feature[ID_DEFINE])) {
-            System.out.println(feature[ID_DESCRIPTION]);
-            listDetectedFeatures.add(feature[ID_DEFINE]);
-        }
+    @Override
+    public void onKeyword(int id) {
+        foundKeywords.set(id);
     }
 
-    private void checkForRelayExpansions(String code) {
-        // Search for REGEX pattern "Box#_" to determine relay modules
-        String box;
-        int numrelays = 0;
-        for (int i = 1; i <= 8; ++i) {
-            box = String.format("Box%d_", i);
-            if (code.contains(box)) {
-                numrelays = i;
-            }
-        }
-        if (numrelays > 0){
-            addFeature(new String[]{"InstalledRelayExpansionModules " + numrelays,
-                    "",
-                    "Number of Relay Expansion Modules: " + numrelays});
-        }
+    @Override
+    public void onRelayBox(int box) {
+        relayBoxes = Math.max(relayBoxes, box);
+    }
+
+    @Override
+    public void onMenuEntry(int entry) {
+        menuEntries = Math.max(menuEntries, entry);
     }
 
-    private void checkForCustomMenu(String code) {
-        String menu;
-        int menuentries = 0;
-        for (int i = 1; i <= 9; ++i) {
-            menu = String.format("MenuEntry%d", i);
-            if (code.contains(menu)) {
-                menuentries = i;
+    @Override
+    public void onScanEnd() {
+        // Everything that was found in the sketch, the rules then add or remove the
+        // features that depend on them
+        BitSet detected = new BitSet(featureGraph.getNodeCount());
+        detected.set(nodeAlways);
+        for (int i = 0; i < listFeatures.size(); ++i) {
+            if (foundKeywords.get(i) || listFeatures.get(i)[ID_KEYWORD].isEmpty()) {
+                detected.set(featureGraph.getFeatureNode(i));
             }
         }
-        if (menuentries > 0) {
-            // Custom menu created
-            addFeature(new String[]{"CUSTOM_MENU_ENTRIES " + menuentries,
-                    "",
-                    "Number of Menu Options: " + menuentries});
-        } else {
-            // Check for default menus
-            if (code.contains("ReefAngel.AddStandardMenu")) {
-                // Standard Menu
-                System.out.println("Standard Menu");
-                addFeature(new String[]{"WavemakerSetup", "", "Wavemaker Menu"});
-                addFeature(new String[]{"ATOSetup", "", "ATO Menu"});
-                addFeature(new String[]{"OverheatSetup", "", "Overheat Menu"});
-                addFeature(new String[]{"StandardLightSetup", "", "Standard Light Menu"});
-            } else {
-                // Simple Menu
-                addFeature(new String[]{"SIMPLE_MENU", "", "Simple Menu"});
+        setDetected(detected, nodeStandardMenu, foundKeywords.get(idStandardMenu));
+        setDetected(detected, nodeRelayModules, relayBoxes > 0);
+        setDetected(detected, nodeMenuEntries, menuEntries > 0);
+        activeFeatures = featureGraph.resolve(detected);
+
+        log().println("The following features were automatically added:");
+        for (int n = activeFeatures.nextSetBit(0); n >= 0; n = activeFeatures.nextSetBit(n + 1)) {
+            if (n >= featureGraph.getFirstFeatureNode()
+                    && activeFeatures.previousSetBit(n - 1) < featureGraph.getFirstFeatureNode()) {
+                log().println("\nThe following features were detected:");
+            }
+            if (!featureGraph.getDescription(n).isEmpty()) {
+                log().println(featureGraph.getDescription(n) + getCountString(n, ": "));
             }
         }
     }
 
-    public String generateFile() {
-        StringBuilder sb = new StringBuilder();
-        sb.append(getAutoGeneratedString(sketchFileName));
-        sb.append("\n");
-        sb.append(FILE_HEADER);
-        sb.append(FEATURES_HEADER);
-        sb.append("\n");
+    private static void setDetected(BitSet detected, int node, boolean found) {
+        // The node is missing if the rules file does not use it
+        if (node >= 0 && found) {
+            detected.set(node);
+        }
+    }
 
-        for (String s : listDetectedFeatures) {
-            sb.append(generateFeatureItem(s));
+    // The number of relay modules and menu entries are added to their defines
+    private String getCountString(int node, String separator) {
+        if (node == nodeRelayModules) {
+            return separator + relayBoxes;
+        } else if (node == nodeMenuEntries) {
+            return separator + menuEntries;
         }
+        return "";
+    }
 
-        sb.append(getBuildDateItem());
+    public void writeFile(RAHeaderWriter out) {
+        writeFileStart(out, sketchFileName);
+        out.write(FEATURES_HEADER_BYTES);
+        out.write(NEWLINE_BYTES);
 
-        sb.append("\n");
-        sb.append(FEATURES_FOOTER);
+        for (int n = activeFeatures.nextSetBit(0); n >= 0; n = activeFeatures.nextSetBit(n + 1)) {
+            if (!featureGraph.isCondition(n)) {
+                FEATURE_ITEM_TEMPLATE.write(out, featureGraph.getDefine(n) + getCountString(n, " "));
+            }
+        }
 
-        return sb.toString();
+        out.write(FEATURES_FOOTER_BYTES);
     }
 
-    private String generateFeatureItem(String feature) {
-        return String.format(FEATURE_ITEM_TEMPLATE, feature);
+    public void writeBuildDateFile(RAHeaderWriter out) {
+        buildDate = getDateString();
+        writeFileStart(out, sketchFileName);
+        out.write(BUILD_DATE_HEADER_BYTES);
+        BUILD_DATE_ITEM_TEMPLATE.write(out, buildDate);
+        out.write(BUILD_DATE_FOOTER_BYTES);
     }
 
-    private String getBuildDateItem() {
-        return "#define CODE_BUILD_DATE \"" + getDateString() +"\"\n";
+    public String getBuildDate() {
+        return buildDate;
     }
 }
\ No newline at end of file
@@ -0,0 +1,180 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Estimated flash and SRAM size of the detected features, read from feature_costs.txt
+next to feature.txt. This is only an estimate to warn before a long compile, the
+compiler has the final say.
+
+Each line of the costs file is one of:
+    DEFINE FLASH SRAM        bytes used when the define is on
+    @base FLASH SRAM         bytes used by the libraries without any feature
+    @budget FLASH SRAM       bytes available on the board
+    # comment
+The cost of InstalledRelayExpansionModules and CUSTOM_MENU_ENTRIES is for each relay
+box or menu entry. The labels are added from their PROGMEM strings (flash).
+When the budget is not in the file, the Mega2560 is used (256K flash less the 8K boot
+loader, 8K SRAM). Without the costs file nothing is estimated.
+*/
+public class RAFootprint {
+    static final String COSTS_FILENAME = "feature_costs.txt";
+    public static final int FLASH = 0;
+    public static final int SRAM = 1;
+    public static final long DEFAULT_FLASH_BUDGET = 253952;
+    public static final long DEFAULT_SRAM_BUDGET = 8192;
+    private static final String BASE = "@base";
+    private static final String BUDGET = "@budget";
+
+    private static RAFootprint lastCosts;
+
+    // Identify the costs file, it is only read again when it changes
+    private final String path;
+    private final long size;
+    private final long modified;
+
+    private final HashMap<String, long[]> costs;
+    private long[] base;
+    private long[] budget;
+
+    private RAFootprint(String path, long size, long modified) {
+        this.path = path;
+        this.size = size;
+        this.modified = modified;
+        costs = new HashMap<>();
+        base = new long[2];
+        budget = new long[]{DEFAULT_FLASH_BUDGET, DEFAULT_SRAM_BUDGET};
+    }
+
+    // Returns the costs from the file, NULL if there is no costs file
+    public static synchronized RAFootprint load(File costsFile) {
+        if (!costsFile.isFile()) {
+            return null;
+        }
+        String path = costsFile.getAbsolutePath();
+        long size = costsFile.length();
+        long modified = costsFile.lastModified();
+        if (lastCosts != null && lastCosts.path.equals(path) && lastCosts.size == size
+                && lastCosts.modified == modified) {
+            return lastCosts;
+        }
+        RAFootprint footprint = new RAFootprint(path, size, modified);
+        try (BufferedReader br = new BufferedReader(new FileReader(costsFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                footprint.parseLine(line.trim());
+            }
+        } catch (IOException e) {
+            RALog.console().error("Unable to read " + COSTS_FILENAME + ": " + e.getMessage());
+            return null;
+        }
+        lastCosts = footprint;
+        return footprint;
+    }
+
+    private void parseLine(String line) {
+        if (line.isEmpty() || line.startsWith("#")) {
+            return;
+        }
+        String[] items = line.split("\\s+");
+        long[] bytes = new long[2];
+        try {
+            if (items.length != 3) {
+                throw new NumberFormatException();
+            }
+            bytes[FLASH] = Long.parseLong(items[1]);
+            bytes[SRAM] = Long.parseLong(items[2]);
+        } catch (NumberFormatException e) {
+            RALog.console().error("Unknown feature cost: " + line);
+            return;
+        }
+        if (items[0].equals(BASE)) {
+            base = bytes;
+        } else if (items[0].equals(BUDGET)) {
+            budget = bytes;
+        } else {
+            costs.put(items[0], bytes);
+        }
+    }
+
+    // Returns the budget from the text FLASH[,SRAM], a missing SRAM is 0 (from the costs file)
+    public static long[] parseBudget(String text) {
+        String[] items = text.trim().split("\\s*,\\s*");
+        long[] bytes = new long[2];
+        try {
+            if (items.length > 2) {
+                throw new NumberFormatException();
+            }
+            for (int i = 0; i < items.length; ++i) {
+                bytes[i] = Long.parseLong(items[i]);
+                if (bytes[i] < 0) {
+                    throw new NumberFormatException();
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid budget: " + text);
+        }
+        return bytes;
+    }
+
+    // Bytes available on the board, indexed by FLASH and SRAM
+    public long getBudget(int memory) {
+        return budget[memory];
+    }
+
+    // Returns the estimated bytes (indexed by FLASH and SRAM) for the defines (with the
+    // count of each define) and the bytes used by the labels. The details are logged.
+    public long[] estimate(Map<String, Integer> defines, long labelBytes, RALog log) {
+        long[] total = base.clone();
+        log.verbose(String.format("  %-34s %8d %6d", "Libraries", base[FLASH], base[SRAM]));
+        List<String> missing = new ArrayList<>();
+        for (Map.Entry<String, Integer> define : defines.entrySet()) {
+            long[] bytes = costs.get(define.getKey());
+            if (bytes == null) {
+                missing.add(define.getKey());
+                continue;
+            }
+            long flash = bytes[FLASH] * define.getValue();
+            long sram = bytes[SRAM] * define.getValue();
+            total[FLASH] += flash;
+            total[SRAM] += sram;
+            log.verbose(String.format("  %-34s %8d %6d", define.getKey(), flash, sram));
+        }
+        total[FLASH] += labelBytes;
+        log.verbose(String.format("  %-34s %8d %6d", "Labels", labelBytes, 0));
+        if (!missing.isEmpty()) {
+            log.verbose("  No cost for: " + String.join(" ", missing));
+        }
+        return total;
+    }
+}
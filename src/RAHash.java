@@ -0,0 +1,93 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/*
+SHA-256 helpers used to tell if the contents of a file have changed.
+*/
+public class RAHash {
+    private static final String ALGORITHM = "SHA-256";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static byte[] sha256(byte[] data) {
+        return newDigest().digest(data);
+    }
+
+    public static byte[] sha256(byte[] data, int length) {
+        MessageDigest md = newDigest();
+        md.update(data, 0, length);
+        return md.digest();
+    }
+
+    public static byte[] sha256(File file) throws IOException {
+        MessageDigest md = newDigest();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = new FileInputStream(file)) {
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                md.update(buffer, 0, count);
+            }
+        }
+        return md.digest();
+    }
+
+    // Returns TRUE if the file exists and has the same contents as the first length bytes
+    // of the data
+    public static boolean matches(File file, byte[] data, int length) {
+        if (!file.isFile() || file.length() != length) {
+            return false;
+        }
+        try {
+            return Arrays.equals(sha256(file), sha256(data, length));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static String toHex(byte[] hash) {
+        char[] s = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; ++i) {
+            s[i * 2] = HEX[(hash[i] >> 4) & 0x0F];
+            s[i * 2 + 1] = HEX[hash[i] & 0x0F];
+        }
+        return new String(s);
+    }
+}
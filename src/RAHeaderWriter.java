@@ -0,0 +1,140 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+Builds the bytes of a generated header file.
+
+The constant parts of the headers are encoded to bytes once (see encode) and the
+variable parts are written with precompiled templates, so no format strings are
+parsed and no intermediate strings are built while generating a file. The buffer is
+reused for every file and is then written straight to disk, only if it changed.
+*/
+public class RAHeaderWriter {
+    private static final int INITIAL_SIZE = 16384;
+
+    private byte[] buffer;
+    private int count;
+
+    public RAHeaderWriter() {
+        buffer = new byte[INITIAL_SIZE];
+        count = 0;
+    }
+
+    public static byte[] encode(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public void reset() {
+        count = 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, count);
+    }
+
+    public void write(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    public void write(String s) {
+        int length = s.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; ++i) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                // Not plain ASCII, let Java encode the rest
+                write(encode(s.substring(i)));
+                return;
+            }
+            buffer[count++] = (byte) c;
+        }
+    }
+
+    // Returns TRUE if the file was written, FALSE if it already had the same contents
+    public boolean writeIfChanged(File file) throws IOException {
+        if (RAHash.matches(file, buffer, count)) {
+            return false;
+        }
+        RAFiles.write(buffer, count, file);
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, count, StandardCharsets.UTF_8);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + extra));
+        }
+    }
+
+    /*
+    Template with %s placeholders. The text between the placeholders is encoded once.
+    */
+    public static class Template {
+        private static final String PLACEHOLDER = "%s";
+        private final byte[][] parts;
+
+        public Template(String template) {
+            ArrayList<byte[]> list = new ArrayList<>();
+            int start = 0;
+            int index;
+            while ((index = template.indexOf(PLACEHOLDER, start)) >= 0) {
+                list.add(encode(template.substring(start, index)));
+                start = index + PLACEHOLDER.length();
+            }
+            list.add(encode(template.substring(start)));
+            parts = list.toArray(new byte[0][]);
+        }
+
+        public void write(RAHeaderWriter out, String value) {
+            out.write(parts[0]);
+            out.write(value);
+            out.write(parts[1]);
+        }
+
+        public void write(RAHeaderWriter out, String value1, String value2) {
+            out.write(parts[0]);
+            out.write(value1);
+            out.write(parts[1]);
+            out.write(value2);
+            out.write(parts[2]);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+Follows the local #include "file" references of the sketch, so the code kept in other
+files (such as src/Logic.h and src/Logic.cpp) is detected like the code in the tabs.
+
+The included files are followed recursively from the folder of the including file,
+then from the sketch folder. When a header is included, the source files with the
+same name next to it (Logic.cpp, Logic.c) are scanned too, since Arduino compiles
+them with the sketch. The tabs are not scanned again, they are already part of the
+sketch. A file that includes itself (directly or through other files) is only
+scanned once.
+
+Each included file is scanned on its own, with only the board symbols defined. The
+scans are cached by the path, size and modified time of the file. When the time
+changed but the contents did not (same SHA-256), the cached scan is still used. The
+cache is shared, so a header used by many sketches is only scanned once.
+*/
+public class RAIncludes {
+    private static final List<String> HEADER_EXTENSIONS = Arrays.asList("h", "hpp");
+    private static final String[] SOURCE_EXTENSIONS = {"cpp", "c"};
+    private static final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<>();
+
+    private final File sketchFolder;
+    private final RAKeywordMatcher matcher;
+    private final Map<String, String> defines;
+    private final RASketchScanner scanner;
+    private final RALog log;
+    private final ArrayList<File> files;
+    private final ArrayList<File> missing;
+    private final HashSet<File> visited;
+    private final ArrayList<File> including;
+
+    public RAIncludes(File sketchFolder, RAKeywordMatcher matcher, Map<String, String> defines, RALog log) {
+        this.sketchFolder = canonical(sketchFolder);
+        this.matcher = matcher;
+        this.defines = new HashMap<>(defines);
+        this.log = log;
+        scanner = new RASketchScanner(matcher, this.defines);
+        files = new ArrayList<>();
+        missing = new ArrayList<>();
+        visited = new HashSet<>();
+        including = new ArrayList<>();
+    }
+
+    // Merges the scans of the files included by the tabs into the result
+    public void follow(List<RASketchScan> tabScans, RASketchScan result) {
+        for (RASketchScan scan : tabScans) {
+            follow(sketchFolder, scan, result);
+        }
+        if (!files.isEmpty()) {
+            log.verbose("Scanned " + files.size() + " included file(s)");
+        }
+    }
+
+    // Files that were included, in the order they were scanned
+    public List<File> getFiles() {
+        return files;
+    }
+
+    // Places that were checked for the includes that were not found. The result changes
+    // if one of them is created.
+    public List<File> getMissing() {
+        return missing;
+    }
+
+    private void follow(File folder, RASketchScan scan, RASketchScan result) {
+        // Copied, the scan of a tab can also be the result
+        for (String name : new ArrayList<>(scan.getIncludes())) {
+            File file = resolve(folder, name);
+            if (file == null) {
+                // not a local file, it is from the libraries
+                continue;
+            }
+            visit(file, result);
+            if (HEADER_EXTENSIONS.contains(getExtension(file))) {
+                String base = file.getName().substring(0, file.getName().lastIndexOf('.') + 1);
+                for (String extension : SOURCE_EXTENSIONS) {
+                    File source = new File(file.getParentFile(), base + extension);
+                    if (source.isFile()) {
+                        visit(source, result);
+                    }
+                }
+            }
+        }
+    }
+
+    private void visit(File file, RASketchScan result) {
+        if (including.contains(file)) {
+            log.verbose("Include cycle: " + including.get(including.size() - 1).getName() + " includes "
+                    + file.getName() + " again, skipping");
+            return;
+        }
+        if (isTab(file) || !visited.add(file)) {
+            return;
+        }
+        RASketchScan scan;
+        try {
+            scan = scan(file);
+        } catch (IOException e) {
+            log.error("Unable to read " + file + ": " + e.getMessage());
+            return;
+        }
+        log.verbose("Including " + file);
+        files.add(file);
+        result.merge(scan);
+        including.add(file);
+        follow(file.getParentFile(), scan, result);
+        including.remove(including.size() - 1);
+    }
+
+    private RASketchScan scan(File file) throws IOException {
+        String path = file.getPath();
+        long size = file.length();
+        long modified = file.lastModified();
+        Entry entry = cache.get(path);
+        if (entry != null && entry.matches(matcher, defines) && entry.size == size && entry.modified == modified) {
+            return entry.scan;
+        }
+        byte[] data = Files.readAllBytes(file.toPath());
+        byte[] hash = RAHash.sha256(data);
+        if (entry != null && entry.matches(matcher, defines) && Arrays.equals(entry.hash, hash)) {
+            // Saved again without changes
+            cache.put(path, new Entry(data.length, modified, hash, matcher, defines, entry.scan));
+            return entry.scan;
+        }
+        RASketchScan scan = scanner.scan(new String(data, StandardCharsets.UTF_8));
+        cache.put(path, new Entry(data.length, modified, hash, matcher, defines, scan));
+        return scan;
+    }
+
+    // Returns the included file, NULL if it is not found
+    private File resolve(File folder, String name) {
+        File file = new File(name);
+        if (!file.isAbsolute()) {
+            file = new File(folder, name);
+            if (!file.isFile()) {
+                addMissing(file);
+                file = new File(sketchFolder, name);
+            }
+        }
+        if (!file.isFile()) {
+            addMissing(file);
+            return null;
+        }
+        return canonical(file);
+    }
+
+    private void addMissing(File file) {
+        file = file.getAbsoluteFile();
+        if (!missing.contains(file)) {
+            missing.add(file);
+        }
+    }
+
+    private boolean isTab(File file) {
+        return sketchFolder.equals(file.getParentFile()) && RASketchProcessor.isSketchFile(file);
+    }
+
+    private static String getExtension(File file) {
+        String name = file.getName();
+        return name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+    }
+
+    private static File canonical(File file) {
+        try {
+            return file.getCanonicalFile();
+        } catch (IOException e) {
+            return file.getAbsoluteFile();
+        }
+    }
+
+    private static class Entry {
+        final long size;
+        final long modified;
+        final byte[] hash;
+        // The keyword ids and the #if blocks depend on these
+        final RAKeywordMatcher matcher;
+        final Map<String, String> defines;
+        final RASketchScan scan;
+
+        Entry(long size, long modified, byte[] hash, RAKeywordMatcher matcher, Map<String, String> defines,
+              RASketchScan scan) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.matcher = matcher;
+            this.defines = defines;
+            this.scan = scan;
+        }
+
+        boolean matches(RAKeywordMatcher matcher, Map<String, String> defines) {
+            return this.matcher == matcher && this.defines.equals(defines);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+Aho-Corasick automaton used to find every keyword in a single pass over the code.
+
+The keywords are compiled once into a trie with failure links. The trie is then
+flattened into plain arrays so stepping through the code does not allocate:
+    - edgeStart[state] .. edgeStart[state+1] is the range of outgoing edges
+    - edgeChar / edgeTarget hold the edges, sorted by character
+    - fail[state] is the longest proper suffix state
+    - outStart[state] .. outStart[state+1] is the range of keyword ids in outIds
+      that end at that state (including the ones reached through the fail links)
+*/
+public class RAKeywordMatcher {
+    public static final int ROOT = 0;
+
+    private final int keywordCount;
+    private final int[] edgeStart;
+    private final char[] edgeChar;
+    private final int[] edgeTarget;
+    private final int[] fail;
+    private final int[] outStart;
+    private final int[] outIds;
+
+    private RAKeywordMatcher(int keywordCount, int[] edgeStart, char[] edgeChar, int[] edgeTarget,
+                             int[] fail, int[] outStart, int[] outIds) {
+        this.keywordCount = keywordCount;
+        this.edgeStart = edgeStart;
+        this.edgeChar = edgeChar;
+        this.edgeTarget = edgeTarget;
+        this.fail = fail;
+        this.outStart = outStart;
+        this.outIds = outIds;
+    }
+
+    // Compiles the keywords. The keyword id is the index in the list.
+    // Empty (or null) keywords are never reported.
+    public static RAKeywordMatcher compile(List<String> keywords) {
+        // Build the trie using temporary nodes
+        ArrayList<TreeMap<Character, Integer>> children = new ArrayList<>();
+        ArrayList<ArrayList<Integer>> outputs = new ArrayList<>();
+        children.add(new TreeMap<>());
+        outputs.add(new ArrayList<>());
+        for (int id = 0; id < keywords.size(); ++id) {
+            String keyword = keywords.get(id);
+            if (keyword == null || keyword.isEmpty()) {
+                continue;
+            }
+            int state = ROOT;
+            for (int i = 0; i < keyword.length(); ++i) {
+                char c = keyword.charAt(i);
+                Integer next = children.get(state).get(c);
+                if (next == null) {
+                    next = children.size();
+                    children.add(new TreeMap<>());
+                    outputs.add(new ArrayList<>());
+                    children.get(state).put(c, next);
+                }
+                state = next;
+            }
+            outputs.get(state).add(id);
+        }
+
+        int states = children.size();
+        int edges = 0;
+        int[] edgeStart = new int[states + 1];
+        for (int s = 0; s < states; ++s) {
+            edgeStart[s] = edges;
+            edges += children.get(s).size();
+        }
+        edgeStart[states] = edges;
+        char[] edgeChar = new char[edges];
+        int[] edgeTarget = new int[edges];
+        for (int s = 0; s < states; ++s) {
+            int e = edgeStart[s];
+            for (Map.Entry<Character, Integer> entry : children.get(s).entrySet()) {
+                edgeChar[e] = entry.getKey();
+                edgeTarget[e] = entry.getValue();
+                ++e;
+            }
+        }
+
+        // Breadth first walk to compute the fail links and merge the outputs
+        int[] fail = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int e = edgeStart[ROOT]; e < edgeStart[ROOT + 1]; ++e) {
+            fail[edgeTarget[e]] = ROOT;
+            queue.add(edgeTarget[e]);
+        }
+        while (!queue.isEmpty()) {
+            int s = queue.poll();
+            for (int e = edgeStart[s]; e < edgeStart[s + 1]; ++e) {
+                int t = edgeTarget[e];
+                int f = fail[s];
+                int next;
+                while ((next = findEdge(edgeStart, edgeChar, edgeTarget, f, edgeChar[e])) < 0 && f != ROOT) {
+                    f = fail[f];
+                }
+                fail[t] = (next < 0) ? ROOT : next;
+                outputs.get(t).addAll(outputs.get(fail[t]));
+                queue.add(t);
+            }
+        }
+
+        int[] outStart = new int[states + 1];
+        int count = 0;
+        for (int s = 0; s < states; ++s) {
+            outStart[s] = count;
+            count += outputs.get(s).size();
+        }
+        outStart[states] = count;
+        int[] outIds = new int[count];
+        for (int s = 0; s < states; ++s) {
+            int o = outStart[s];
+            for (int id : outputs.get(s)) {
+                outIds[o++] = id;
+            }
+        }
+        return new RAKeywordMatcher(keywords.size(), edgeStart, edgeChar, edgeTarget, fail, outStart, outIds);
+    }
+
+    private static int findEdge(int[] edgeStart, char[] edgeChar, int[] edgeTarget, int state, char c) {
+        int from = edgeStart[state];
+        int to = edgeStart[state + 1];
+        int index = Arrays.binarySearch(edgeChar, from, to, c);
+        return (index >= 0) ? edgeTarget[index] : -1;
+    }
+
+    public int getKeywordCount() {
+        return keywordCount;
+    }
+
+    // Advances the automaton by one character
+    public int next(int state, char c) {
+        int next;
+        while ((next = findEdge(edgeStart, edgeChar, edgeTarget, state, c)) < 0 && state != ROOT) {
+            state = fail[state];
+        }
+        return (next < 0) ? ROOT : next;
+    }
+
+    public boolean hasMatch(int state) {
+        return outStart[state] != outStart[state + 1];
+    }
+
+    // Adds the ids of all the keywords ending at the state
+    public void collect(int state, BitSet found) {
+        for (int o = outStart[state]; o < outStart[state + 1]; ++o) {
+            found.set(outIds[o]);
+        }
+    }
+
+    // The keywords ending at the state are getMatchId(getMatchStart(state)) up to getMatchEnd(state)
+    public int getMatchStart(int state) {
+        return outStart[state];
+    }
+
+    public int getMatchEnd(int state) {
+        return outStart[state + 1];
+    }
+
+    public int getMatchId(int index) {
+        return outIds[index];
+    }
+
+    // Saves the compiled automaton, so it can be loaded without compiling the keywords again
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(keywordCount);
+        writeArray(out, edgeStart);
+        out.writeInt(edgeChar.length);
+        for (char c : edgeChar) {
+            out.writeChar(c);
+        }
+        writeArray(out, edgeTarget);
+        writeArray(out, fail);
+        writeArray(out, outStart);
+        writeArray(out, outIds);
+    }
+
+    // Loads a saved automaton. The data is checked, so a corrupt file is an IOException
+    // instead of a matcher that fails (or never ends) while scanning.
+    public static RAKeywordMatcher read(DataInputStream in) throws IOException {
+        int keywordCount = in.readInt();
+        int[] edgeStart = readArray(in);
+        char[] edgeChar = new char[readLength(in, 2)];
+        for (int i = 0; i < edgeChar.length; ++i) {
+            edgeChar[i] = in.readChar();
+        }
+        int[] edgeTarget = readArray(in);
+        int[] fail = readArray(in);
+        int[] outStart = readArray(in);
+        int[] outIds = readArray(in);
+        if (keywordCount < 0 || fail.length == 0 || edgeStart.length != fail.length + 1
+                || outStart.length != edgeStart.length || edgeChar.length != edgeTarget.length
+                || !isRanges(edgeStart, edgeChar.length) || !isRanges(outStart, outIds.length)
+                || !isIds(outIds, keywordCount) || !isTrie(edgeStart, edgeTarget, fail)) {
+            throw new IOException("Invalid keyword matcher data");
+        }
+        return new RAKeywordMatcher(keywordCount, edgeStart, edgeChar, edgeTarget, fail, outStart, outIds);
+    }
+
+    // Reads a count of items of elementSize bytes, which must fit in the bytes left
+    static int readLength(DataInputStream in, int elementSize) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available() / elementSize) {
+            throw new IOException("Invalid length " + length);
+        }
+        return length;
+    }
+
+    private static void writeArray(DataOutput out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int v : values) {
+            out.writeInt(v);
+        }
+    }
+
+    private static int[] readArray(DataInputStream in) throws IOException {
+        int[] values = new int[readLength(in, 4)];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    // Returns TRUE if the starts go from 0 to end without going back
+    private static boolean isRanges(int[] starts, int end) {
+        int last = 0;
+        for (int start : starts) {
+            if (start < last || start > end) {
+                return false;
+            }
+            last = start;
+        }
+        return starts[0] == 0 && last == end;
+    }
+
+    private static boolean isIds(int[] ids, int count) {
+        for (int id : ids) {
+            if (id < 0 || id >= count) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns TRUE if every state other than the root is reached by exactly one edge and
+    // fails to a shorter state, so following the fail links always ends at the root
+    private static boolean isTrie(int[] edgeStart, int[] edgeTarget, int[] fail) {
+        int states = fail.length;
+        int[] depth = new int[states];
+        Arrays.fill(depth, -1);
+        depth[ROOT] = 0;
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(ROOT);
+        while (!queue.isEmpty()) {
+            int s = queue.poll();
+            for (int e = edgeStart[s]; e < edgeStart[s + 1]; ++e) {
+                int t = edgeTarget[e];
+                if (t <= ROOT || t >= states || depth[t] >= 0) {
+                    return false;
+                }
+                depth[t] = depth[s] + 1;
+                queue.add(t);
+            }
+        }
+        for (int s = 0; s < states; ++s) {
+            if (depth[s] < 0 || fail[s] < 0 || fail[s] >= states || (s != ROOT && depth[fail[s]] >= depth[s])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the ids of all the keywords found in the code
+    public BitSet match(CharSequence code) {
+        BitSet found = new BitSet(keywordCount);
+        int state = ROOT;
+        for (int i = 0; i < code.length(); ++i) {
+            state = next(state, code.charAt(i));
+            if (hasMatch(state)) {
+                collect(state, found);
+            }
+        }
+        return found;
+    }
+}
@@ -23,14 +23,30 @@
 
 package info.curtbinder.arduino.tool;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
 
+/*
+Reads the version of the Reef Angel libraries from ReefAngel.h.
+
+The header is read in blocks and only up to the version line. It is not memory mapped,
+the mapping keeps the file locked on Windows until it is garbage collected, so the
+libraries could not be updated while the tool is loaded. The version is
+cached by the path, size and modified time of the header, so running again without
+updating the libraries does not read the file. The cache is shared, so any part of
+the tool can ask for the version with getVersion without reading the file again.
+*/
 public class RALibsVersion {
     private static String LIBRARY_FILE = "/libraries/ReefAngel/ReefAngel.h";
     private static String VERSION_LABEL = "ReefAngel_Version ";
+    private static final byte[] VERSION_LABEL_BYTES = VERSION_LABEL.getBytes(StandardCharsets.US_ASCII);
+    private static final int READ_SIZE = 8192;
+    private static final ConcurrentHashMap<String, Probe> cache = new ConcurrentHashMap<>();
     private String libraryFile;
     private String libraryVersion;
 
@@ -41,38 +57,28 @@ public class RALibsVersion {
 
     public void init(String sketchbookPath) {
         libraryFile = sketchbookPath + LIBRARY_FILE;
+        libraryVersion = "";
     }
 
     // Returns TRUE if version found, FALSE if not found
     public boolean display() {
         boolean fRet = false;
+        // Not kept from the last time, the header may be gone or unreadable now
+        libraryVersion = "";
+        File file = new File(libraryFile);
+        if (!file.isFile()) {
+            RALog.console().println("Reef Angel Libraries not found.");
+            return fRet;
+        }
         try {
-            FileReader fr = new FileReader(libraryFile);
-            BufferedReader br = new BufferedReader(fr);
-            String line = null;
-            String version = "";
-            while ((line = br.readLine()) != null) {
-                int index = line.indexOf(VERSION_LABEL);
-                if (index > 0) {
-                    // jump to end of version label to get the version
-                    version = line.substring(index + VERSION_LABEL.length());
-                    // remove quotes from version string
-                    version = version.replace("\"", "");
-                    break;
-                }
-            }
-            br.close();
-            System.out.print("Reef Angel Libraries Version: ");
-            if (version.isEmpty()) {
-                System.out.println("NONE");
-            } else {
-                System.out.println(version);
+            String version = getVersion(file);
+            RALog.console().println("Reef Angel Libraries Version: " + (version.isEmpty() ? "NONE" : version));
+            if (!version.isEmpty()) {
                 libraryVersion = version;
+                fRet = true;
             }
-        } catch (FileNotFoundException e) {
-            System.out.println("Reef Angel Libraries not found.");
         } catch (IOException e) {
-            System.out.println("Error: " + e.getMessage());
+            RALog.console().error("Error: " + e.getMessage());
         }
         return fRet;
     }
@@ -80,4 +86,96 @@ public class RALibsVersion {
     public String getLibraryVersion() {
         return libraryVersion;
     }
+
+    // Version from the ReefAngel.h header in the sketchbook, empty if not found
+    public static String getVersion(String sketchbookPath) throws IOException {
+        File file = new File(sketchbookPath + LIBRARY_FILE);
+        return file.isFile() ? getVersion(file) : "";
+    }
+
+    public static String getVersion(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long modified = file.lastModified();
+        Probe probe = cache.get(path);
+        if (probe == null || probe.size != size || probe.modified != modified) {
+            probe = new Probe(size, modified, readVersion(file));
+            cache.put(path, probe);
+        }
+        return probe.version;
+    }
+
+    private static String readVersion(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+            while (true) {
+                boolean eof = channel.read(buffer) < 0;
+                buffer.flip();
+                // Check the complete lines, the rest is kept for the next block
+                int lineStart = 0;
+                for (int i = 0; i < buffer.limit(); ++i) {
+                    if (buffer.get(i) == '\n') {
+                        String version = findVersion(buffer, lineStart, i);
+                        if (version != null) {
+                            return version;
+                        }
+                        lineStart = i + 1;
+                    }
+                }
+                if (eof) {
+                    String version = findVersion(buffer, lineStart, buffer.limit());
+                    return (version != null) ? version : "";
+                }
+                buffer.position(lineStart);
+                buffer.compact();
+                if (!buffer.hasRemaining()) {
+                    // the line does not fit, make room for more of it
+                    ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                }
+            }
+        }
+    }
+
+    // Returns the version from the line (start to end), NULL if it is not the version line
+    private static String findVersion(ByteBuffer buffer, int start, int end) {
+        if (end > start && buffer.get(end - 1) == '\r') {
+            --end;
+        }
+        for (int i = start + 1; i <= end - VERSION_LABEL_BYTES.length; ++i) {
+            if (buffer.get(i) == VERSION_LABEL_BYTES[0] && startsWith(buffer, i)) {
+                // jump to end of version label to get the version
+                byte[] version = new byte[end - i - VERSION_LABEL_BYTES.length];
+                for (int j = 0; j < version.length; ++j) {
+                    version[j] = buffer.get(i + VERSION_LABEL_BYTES.length + j);
+                }
+                // remove quotes from version string
+                return new String(version, StandardCharsets.UTF_8).replace("\"", "");
+            }
+        }
+        return null;
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int offset) {
+        for (int i = 1; i < VERSION_LABEL_BYTES.length; ++i) {
+            if (buffer.get(offset + i) != VERSION_LABEL_BYTES[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Probe {
+        final long size;
+        final long modified;
+        final String version;
+
+        Probe(long size, long modified, String version) {
+            this.size = size;
+            this.modified = modified;
+            this.version = version;
+        }
+    }
 }
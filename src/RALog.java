@@ -0,0 +1,138 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+/*
+Messages for the console.
+
+The Arduino console repaints for every line printed, so the messages of each step are
+collected in a buffered log and printed in one batch with flush. The console log is
+not buffered and is used for the single messages outside of the steps.
+
+The level is shared by all the logs:
+    OFF      nothing is printed
+    QUIET    only the errors
+    NORMAL   the usual messages (default)
+    VERBOSE  also the details (downloads, timings)
+*/
+public class RALog {
+    public static final int OFF = 0;
+    public static final int QUIET = 1;
+    public static final int NORMAL = 2;
+    public static final int VERBOSE = 3;
+    private static final String[] LEVEL_NAMES = {"off", "quiet", "normal", "verbose"};
+
+    private static volatile int level = NORMAL;
+    private static final RALog console = new RALog(false);
+
+    private final StringBuilder buffer;
+    private final boolean buffered;
+
+    private RALog(boolean buffered) {
+        this.buffered = buffered;
+        buffer = new StringBuilder();
+    }
+
+    // Log that is only printed when flushed
+    public static RALog buffered() {
+        return new RALog(true);
+    }
+
+    // Log that prints right away
+    public static RALog console() {
+        return console;
+    }
+
+    public static void setLevel(int newLevel) {
+        level = Math.max(OFF, Math.min(VERBOSE, newLevel));
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    // Returns the level from its name (off, quiet, normal, verbose)
+    public static int parseLevel(String name) {
+        for (int i = 0; i < LEVEL_NAMES.length; ++i) {
+            if (LEVEL_NAMES[i].equalsIgnoreCase(name.trim())) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown log level: " + name);
+    }
+
+    public static boolean isVerbose() {
+        return level >= VERBOSE;
+    }
+
+    public void println(String msg) {
+        add(NORMAL, msg);
+    }
+
+    public void println() {
+        add(NORMAL, "");
+    }
+
+    public void verbose(String msg) {
+        add(VERBOSE, msg);
+    }
+
+    public void error(String msg) {
+        add(QUIET, msg);
+    }
+
+    private synchronized void add(int msgLevel, String msg) {
+        if (level < msgLevel) {
+            return;
+        }
+        buffer.append(msg).append('\n');
+        if (!buffered) {
+            flush();
+        }
+    }
+
+    // Prints the messages collected so far in one batch
+    public synchronized void flush() {
+        if (buffer.length() > 0) {
+            System.out.print(buffer);
+            System.out.flush();
+            buffer.setLength(0);
+        }
+    }
+
+    // Adds the messages of another log, in order, without printing them
+    public void append(RALog other) {
+        String text;
+        synchronized (other) {
+            text = other.buffer.toString();
+            other.buffer.setLength(0);
+        }
+        synchronized (this) {
+            buffer.append(text);
+            if (!buffered) {
+                flush();
+            }
+        }
+    }
+}
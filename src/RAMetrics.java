@@ -0,0 +1,227 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+Timings and counters for the tool.
+
+Each phase (hasPrerequisites, loadDefaults, process, generateFile, saveFile, ...) is
+timed with startPhase / Phase.end. The time is added to the totals and, when the Java
+running the tool supports it, recorded as a JFR event (RAPhaseEvent) so the phases
+show up in a flight recording.
+
+The totals and counters are available with any JMX client (jconsole, VisualVM, etc).
+*/
+public class RAMetrics implements RAMetricsMXBean {
+    private static final String OBJECT_NAME = "info.curtbinder.arduino.tool:type=CBTool";
+    private static final RAMetrics INSTANCE = new RAMetrics();
+    private static final boolean JFR_AVAILABLE = RAPhaseEvent.isAvailable();
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong bytesScanned = new AtomicLong();
+    private final AtomicLong featuresDetected = new AtomicLong();
+    private final AtomicLong indexCacheHits = new AtomicLong();
+    private final AtomicLong indexCacheMisses = new AtomicLong();
+    private final AtomicLong filesWritten = new AtomicLong();
+    private final AtomicLong filesUnchanged = new AtomicLong();
+    private final AtomicLong downloads = new AtomicLong();
+    private final AtomicLong downloadFailures = new AtomicLong();
+    private final AtomicLong downloadTotalMillis = new AtomicLong();
+    private final AtomicLong lastDownloadMillis = new AtomicLong();
+    private final ConcurrentHashMap<String, AtomicLong> phaseNanos = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong> phaseCounts = new ConcurrentHashMap<>();
+
+    static {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(INSTANCE, name);
+            }
+        } catch (JMException | SecurityException e) {
+            // Metrics are still kept, just not available over JMX
+        }
+    }
+
+    private RAMetrics() {
+    }
+
+    public static RAMetrics get() {
+        return INSTANCE;
+    }
+
+    // Starts timing a phase, call end on the returned phase when done
+    public static Phase startPhase(String name, String detail) {
+        return new Phase(name, detail);
+    }
+
+    public static class Phase {
+        private final String name;
+        private final long start;
+        private final Object event;
+
+        private Phase(String name, String detail) {
+            this.name = name;
+            event = JFR_AVAILABLE ? RAPhaseEvent.begin(name, detail) : null;
+            start = System.nanoTime();
+        }
+
+        // Returns the elapsed milliseconds
+        public long end() {
+            long elapsed = System.nanoTime() - start;
+            if (event != null) {
+                RAPhaseEvent.commit(event);
+            }
+            INSTANCE.addPhase(name, elapsed);
+            return elapsed / 1000000;
+        }
+    }
+
+    private void addPhase(String name, long nanos) {
+        phaseNanos.computeIfAbsent(name, k -> new AtomicLong()).addAndGet(nanos);
+        phaseCounts.computeIfAbsent(name, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    public void addRun() {
+        runs.incrementAndGet();
+    }
+
+    public void addBytesScanned(long bytes) {
+        bytesScanned.addAndGet(bytes);
+    }
+
+    public void addFeaturesDetected(long count) {
+        featuresDetected.addAndGet(count);
+    }
+
+    public void addIndexCacheHit() {
+        indexCacheHits.incrementAndGet();
+    }
+
+    public void addIndexCacheMiss() {
+        indexCacheMisses.incrementAndGet();
+    }
+
+    public void addFileSaved(boolean written) {
+        if (written) {
+            filesWritten.incrementAndGet();
+        } else {
+            filesUnchanged.incrementAndGet();
+        }
+    }
+
+    public void addDownload(long millis, boolean success) {
+        downloads.incrementAndGet();
+        if (!success) {
+            downloadFailures.incrementAndGet();
+        }
+        downloadTotalMillis.addAndGet(millis);
+        lastDownloadMillis.set(millis);
+    }
+
+    public long getRuns() {
+        return runs.get();
+    }
+
+    public long getBytesScanned() {
+        return bytesScanned.get();
+    }
+
+    public long getFeaturesDetected() {
+        return featuresDetected.get();
+    }
+
+    public long getFeatureIndexCacheHits() {
+        return indexCacheHits.get();
+    }
+
+    public long getFeatureIndexCacheMisses() {
+        return indexCacheMisses.get();
+    }
+
+    public long getFilesWritten() {
+        return filesWritten.get();
+    }
+
+    public long getFilesUnchanged() {
+        return filesUnchanged.get();
+    }
+
+    public long getDownloads() {
+        return downloads.get();
+    }
+
+    public long getDownloadFailures() {
+        return downloadFailures.get();
+    }
+
+    public long getDownloadTotalMillis() {
+        return downloadTotalMillis.get();
+    }
+
+    public long getLastDownloadMillis() {
+        return lastDownloadMillis.get();
+    }
+
+    public Map<String, Long> getPhaseTotalMillis() {
+        TreeMap<String, Long> map = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : phaseNanos.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().get() / 1000000);
+        }
+        return map;
+    }
+
+    public Map<String, Long> getPhaseCounts() {
+        TreeMap<String, Long> map = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : phaseCounts.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().get());
+        }
+        return map;
+    }
+
+    public void reset() {
+        runs.set(0);
+        bytesScanned.set(0);
+        featuresDetected.set(0);
+        indexCacheHits.set(0);
+        indexCacheMisses.set(0);
+        filesWritten.set(0);
+        filesUnchanged.set(0);
+        downloads.set(0);
+        downloadFailures.set(0);
+        downloadTotalMillis.set(0);
+        lastDownloadMillis.set(0);
+        phaseNanos.clear();
+        phaseCounts.clear();
+    }
+}
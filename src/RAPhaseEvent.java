@@ -0,0 +1,113 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+Flight Recorder event for a phase of the tool.
+
+JFR (jdk.jfr) is not in every Java 8 (only 8u262 and later) and is not part of the
+Java 8 API, so it is only used through reflection: the event type is created at run
+time with jdk.jfr.EventFactory. When it is missing, isAvailable is FALSE and RAMetrics
+does not record any event, the phases are still timed.
+*/
+class RAPhaseEvent {
+    private static final String JFR = "jdk.jfr.";
+    private static final String NAME = "info.curtbinder.arduino.tool.Phase";
+    private static final int PHASE = 0;
+    private static final int DETAIL = 1;
+
+    private static Object factory;
+    private static Method newEvent;
+    private static Method set;
+    private static Method begin;
+    private static Method commit;
+
+    static {
+        try {
+            Class<?> annotationElement = Class.forName(JFR + "AnnotationElement");
+            Constructor<?> newAnnotation = annotationElement.getConstructor(Class.class, Object.class);
+            Class<?> label = Class.forName(JFR + "Label");
+            List<Object> annotations = Arrays.asList(
+                    newAnnotation.newInstance(Class.forName(JFR + "Name"), NAME),
+                    newAnnotation.newInstance(label, "CBTool Phase"),
+                    newAnnotation.newInstance(Class.forName(JFR + "Category"), new String[]{"CBTool"}),
+                    newAnnotation.newInstance(Class.forName(JFR + "Description"),
+                            "Time spent in a phase of processing a sketch"),
+                    // The stack would only show the reflection
+                    newAnnotation.newInstance(Class.forName(JFR + "StackTrace"), false));
+            // In the order of PHASE and DETAIL
+            Constructor<?> newField = Class.forName(JFR + "ValueDescriptor")
+                    .getConstructor(Class.class, String.class, List.class);
+            List<Object> fields = Arrays.asList(
+                    newField.newInstance(String.class, "phase",
+                            Collections.singletonList(newAnnotation.newInstance(label, "Phase"))),
+                    newField.newInstance(String.class, "detail",
+                            Collections.singletonList(newAnnotation.newInstance(label, "Detail"))));
+            Class<?> eventFactory = Class.forName(JFR + "EventFactory");
+            Class<?> event = Class.forName(JFR + "Event");
+            newEvent = eventFactory.getMethod("newEvent");
+            set = event.getMethod("set", int.class, Object.class);
+            begin = event.getMethod("begin");
+            commit = event.getMethod("commit");
+            factory = eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            // No JFR, the events are not recorded
+            factory = null;
+        }
+    }
+
+    private RAPhaseEvent() {
+    }
+
+    static boolean isAvailable() {
+        return factory != null;
+    }
+
+    // Returns the started event, NULL if it could not be created
+    static Object begin(String phase, String detail) {
+        try {
+            Object event = newEvent.invoke(factory);
+            set.invoke(event, PHASE, phase);
+            set.invoke(event, DETAIL, detail);
+            begin.invoke(event);
+            return event;
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    static void commit(Object event) {
+        try {
+            commit.invoke(event);
+        } catch (ReflectiveOperationException e) {
+            // Only the recording misses it
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+Refreshes the downloaded files (feature.txt, cbtool-version.txt) in the background.
+
+The plugin starts this when it is loaded, so running the tool only reads the files
+already on disk and never waits for the server. The downloads run one after another
+on a low priority daemon thread, with the timeouts and conditional GET of RADownloader,
+and replace the files atomically, so a run reading them at the same time sees either
+the old or the new file. Only one refresh runs at a time, even with many editor windows.
+*/
+public class RAPrefetcher implements Runnable {
+    private static final AtomicBoolean running = new AtomicBoolean(false);
+
+    private final ArrayList<URL> urls;
+    private final ArrayList<File> files;
+
+    public RAPrefetcher() {
+        urls = new ArrayList<>();
+        files = new ArrayList<>();
+    }
+
+    public void add(URL url, File file) {
+        urls.add(url);
+        files.add(file);
+    }
+
+    // Returns FALSE if a refresh is already running
+    public boolean start() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        Thread thread = new Thread(this, "CBTool prefetch");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        return true;
+    }
+
+    public static boolean isRunning() {
+        return running.get();
+    }
+
+    public void run() {
+        try {
+            for (int i = 0; i < urls.size(); ++i) {
+                File file = files.get(i);
+                try {
+                    file.getAbsoluteFile().getParentFile().mkdirs();
+                    if (new RADownloader().download(urls.get(i), file)) {
+                        RALog.console().verbose("Downloaded the latest " + file.getName());
+                    }
+                } catch (IOException e) {
+                    // Keep the file already on disk, it is refreshed the next time
+                    RALog.console().println("Unable to refresh " + file.getName() + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            running.set(false);
+        }
+    }
+}
@@ -0,0 +1,522 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/*
+Keeps track of the conditional compilation (#if / #ifdef / #else / #endif) while the
+sketch is scanned, so the code in the inactive branches does not turn on features.
+
+Only the symbols that are known are used:
+    - the board symbols (ARDUINO_ARCH_SAMD), when the architecture of the board is
+      given (an ARDUINO_ARCH_<arch> define), they are defined only when set
+    - the symbols set for the board, such as RA_STAR when it is given
+    - the symbols set with #define / #undef earlier in the sketch
+Everything else may be defined by the libraries (including the generated features
+header), so a condition using an unknown symbol cannot be decided. Those branches, and
+the branches following them, are all treated as active, the same as before the
+conditions were checked. Only the branches that are known to be skipped are inactive,
+such as #if 0 or the branches for another board.
+
+Conditions (#if / #elif) support numbers, defined(X), the known symbols and the
+C operators (! ~ * / % + - << >> < <= > >= == != & ^ | && || ?:).
+*/
+public class RAPreprocessor {
+    // Board symbols that are known to be undefined unless they are set for the board, once
+    // the architecture is known
+    public static final String ARCH_PREFIX = "ARDUINO_ARCH_";
+    public static final List<String> BOARD_SYMBOLS =
+            Collections.unmodifiableList(Arrays.asList("ARDUINO_ARCH_SAMD"));
+    private static final int MAX_EXPANSION_DEPTH = 8;
+    private static final int TRUE = 1;
+    private static final int FALSE = 0;
+    private static final int UNKNOWN = -1;
+
+    // Values of the defined symbols and the names that are known (defined or not)
+    private final HashMap<String, String> defined;
+    private final HashSet<String> known;
+    private final ArrayList<Branch> branches;
+    private boolean active;
+    // TRUE when every enclosing branch is known to be active
+    private boolean certain;
+
+    // defines are the symbols set for the board (name -> value, the value may be empty)
+    public RAPreprocessor(Map<String, String> defines) {
+        defined = new HashMap<>(defines);
+        known = new HashSet<>(defines.keySet());
+        if (hasArch(defines)) {
+            known.addAll(BOARD_SYMBOLS);
+        }
+        branches = new ArrayList<>();
+        active = true;
+        certain = true;
+    }
+
+    // Defines ARDUINO_ARCH_<ARCH> for the architecture of the board (avr, samd), like Arduino
+    public static void addArch(String arch, Map<String, String> defines) {
+        if (!arch.trim().isEmpty()) {
+            defines.put(ARCH_PREFIX + arch.trim().toUpperCase(), "1");
+        }
+    }
+
+    // Without the architecture the board symbols are unknown, the code for every board is detected
+    private static boolean hasArch(Map<String, String> defines) {
+        for (String name : defines.keySet()) {
+            if (name.startsWith(ARCH_PREFIX)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Adds the symbols from the list (NAME or NAME=VALUE, separated by commas or spaces)
+    public static void addDefines(String list, Map<String, String> defines) {
+        for (String item : list.split("[,\\s]+")) {
+            if (item.isEmpty()) {
+                continue;
+            }
+            int equals = item.indexOf('=');
+            if (equals == 0) {
+                throw new IllegalArgumentException("Invalid define: " + item);
+            }
+            if (equals > 0) {
+                defines.put(item.substring(0, equals), item.substring(equals + 1));
+            } else {
+                defines.put(item, "1");
+            }
+        }
+    }
+
+    // Returns TRUE if the code at the current position is compiled (or might be)
+    public boolean isActive() {
+        return active;
+    }
+
+    // Handles the directive line (starting with #, comments removed)
+    public void directive(String line) {
+        String text = line.trim().substring(1).trim();
+        int end = 0;
+        while (end < text.length() && Character.isLetter(text.charAt(end))) {
+            ++end;
+        }
+        String name = text.substring(0, end);
+        String rest = text.substring(end).trim();
+        switch (name) {
+            case "if":
+                push(active ? evaluate(rest) : FALSE);
+                break;
+            case "ifdef":
+                push(active ? isDefined(firstWord(rest)) : FALSE);
+                break;
+            case "ifndef":
+                push(active ? not(isDefined(firstWord(rest))) : FALSE);
+                break;
+            case "elif":
+                if (!branches.isEmpty()) {
+                    Branch b = top();
+                    next(b, (b.parentActive && !b.taken) ? evaluate(rest) : FALSE);
+                }
+                break;
+            case "else":
+                if (!branches.isEmpty()) {
+                    next(top(), TRUE);
+                }
+                break;
+            case "endif":
+                if (!branches.isEmpty()) {
+                    Branch b = branches.remove(branches.size() - 1);
+                    active = b.parentActive;
+                    certain = b.parentCertain;
+                }
+                break;
+            case "define":
+                if (active) {
+                    String symbol = firstWord(rest);
+                    if (!symbol.isEmpty()) {
+                        set(symbol, rest.substring(symbol.length()).trim(), true);
+                    }
+                }
+                break;
+            case "undef":
+                if (active) {
+                    set(firstWord(rest), null, false);
+                }
+                break;
+            default:
+                // #include, #pragma, #error, ... do not change the branches
+                break;
+        }
+    }
+
+    // Returns the file of a local #include "file" directive, NULL for any other directive
+    public static String getLocalInclude(String line) {
+        String text = line.trim().substring(1).trim();
+        if (!text.startsWith("include")) {
+            return null;
+        }
+        text = text.substring("include".length()).trim();
+        int end = text.indexOf('"', 1);
+        if (!text.startsWith("\"") || end < 0) {
+            // <file> is from the libraries
+            return null;
+        }
+        return text.substring(1, end);
+    }
+
+    private void set(String symbol, String value, boolean isDefined) {
+        if (!certain) {
+            // Might not be compiled, so it is no longer known if the symbol is defined
+            known.remove(symbol);
+            defined.remove(symbol);
+            return;
+        }
+        known.add(symbol);
+        if (isDefined) {
+            defined.put(symbol, value);
+        } else {
+            defined.remove(symbol);
+        }
+    }
+
+    private Branch top() {
+        return branches.get(branches.size() - 1);
+    }
+
+    private void push(int condition) {
+        Branch b = new Branch(active, certain);
+        branches.add(b);
+        next(b, condition);
+    }
+
+    // Starts the next branch of the group with its condition
+    private void next(Branch b, int condition) {
+        boolean branchActive = false;
+        if (b.parentActive && !b.taken) {
+            if (condition == TRUE) {
+                branchActive = true;
+                // one of the earlier unknown branches or this one is compiled,
+                // either way the branches after this one are not
+                b.taken = true;
+            } else if (condition == UNKNOWN) {
+                branchActive = true;
+                b.uncertain = true;
+            }
+        }
+        active = branchActive;
+        certain = b.parentCertain && branchActive && !b.uncertain;
+    }
+
+    private int isDefined(String symbol) {
+        if (!known.contains(symbol)) {
+            return UNKNOWN;
+        }
+        return defined.containsKey(symbol) ? TRUE : FALSE;
+    }
+
+    private static int not(int value) {
+        return (value == UNKNOWN) ? UNKNOWN : 1 - value;
+    }
+
+    private static String firstWord(String text) {
+        int end = 0;
+        while (end < text.length() && isIdentifierPart(text.charAt(end))) {
+            ++end;
+        }
+        return text.substring(0, end);
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    private int evaluate(String expression) {
+        Long value = new Expression(expression, 0).evaluate();
+        if (value == null) {
+            return UNKNOWN;
+        }
+        return (value != 0) ? TRUE : FALSE;
+    }
+
+    private static class Branch {
+        final boolean parentActive;
+        final boolean parentCertain;
+        // a branch of the group is known to be compiled
+        boolean taken;
+        // a branch of the group could not be decided
+        boolean uncertain;
+
+        Branch(boolean parentActive, boolean parentCertain) {
+            this.parentActive = parentActive;
+            this.parentCertain = parentCertain;
+        }
+    }
+
+    /*
+    Recursive descent evaluation of a condition, NULL is used for an unknown value.
+    Any error in the expression makes it unknown.
+    */
+    private class Expression {
+        private final String text;
+        private final int depth;
+        private int pos;
+        private boolean failed;
+
+        Expression(String text, int depth) {
+            this.text = text;
+            this.depth = depth;
+        }
+
+        Long evaluate() {
+            if (depth > MAX_EXPANSION_DEPTH) {
+                return null;
+            }
+            Long value = conditional();
+            skipSpaces();
+            if (failed || pos != text.length()) {
+                return null;
+            }
+            return value;
+        }
+
+        private Long conditional() {
+            Long condition = binary(0);
+            if (!accept("?")) {
+                return condition;
+            }
+            Long whenTrue = conditional();
+            if (!accept(":")) {
+                failed = true;
+                return null;
+            }
+            Long whenFalse = conditional();
+            if (condition == null) {
+                return (whenTrue != null && whenTrue.equals(whenFalse)) ? whenTrue : null;
+            }
+            return (condition != 0) ? whenTrue : whenFalse;
+        }
+
+        // Binary operators from the lowest precedence to the highest
+        private final String[][] levels = {
+                {"||"}, {"&&"}, {"|"}, {"^"}, {"&"}, {"==", "!="}, {"<=", ">=", "<", ">"},
+                {"<<", ">>"}, {"+", "-"}, {"*", "/", "%"}
+        };
+
+        private Long binary(int level) {
+            if (level == levels.length) {
+                return unary();
+            }
+            Long left = binary(level + 1);
+            String op;
+            while (!failed && (op = acceptOperator(levels[level])) != null) {
+                Long right = binary(level + 1);
+                left = apply(op, left, right);
+            }
+            return left;
+        }
+
+        private Long apply(String op, Long a, Long b) {
+            // An unknown side does not matter when the other side decides the result
+            if (op.equals("&&")) {
+                if ((a != null && a == 0) || (b != null && b == 0)) {
+                    return 0L;
+                }
+                return (a == null || b == null) ? null : 1L;
+            }
+            if (op.equals("||")) {
+                if ((a != null && a != 0) || (b != null && b != 0)) {
+                    return 1L;
+                }
+                return (a == null || b == null) ? null : 0L;
+            }
+            if (a == null || b == null) {
+                return null;
+            }
+            switch (op) {
+                case "|": return a | b;
+                case "^": return a ^ b;
+                case "&": return a & b;
+                case "==": return (a.longValue() == b.longValue()) ? 1L : 0L;
+                case "!=": return (a.longValue() != b.longValue()) ? 1L : 0L;
+                case "<=": return (a <= b) ? 1L : 0L;
+                case ">=": return (a >= b) ? 1L : 0L;
+                case "<": return (a < b) ? 1L : 0L;
+                case ">": return (a > b) ? 1L : 0L;
+                case "<<": return a << b;
+                case ">>": return a >> b;
+                case "+": return a + b;
+                case "-": return a - b;
+                case "*": return a * b;
+                case "/": return (b == 0) ? null : a / b;
+                case "%": return (b == 0) ? null : a % b;
+                default:
+                    failed = true;
+                    return null;
+            }
+        }
+
+        private Long unary() {
+            skipSpaces();
+            if (accept("!")) {
+                Long v = unary();
+                return (v == null) ? null : (v == 0 ? 1L : 0L);
+            } else if (accept("~")) {
+                Long v = unary();
+                return (v == null) ? null : ~v;
+            } else if (accept("-")) {
+                Long v = unary();
+                return (v == null) ? null : -v;
+            } else if (accept("+")) {
+                return unary();
+            }
+            return primary();
+        }
+
+        private Long primary() {
+            skipSpaces();
+            if (accept("(")) {
+                Long v = conditional();
+                if (!accept(")")) {
+                    failed = true;
+                }
+                return v;
+            }
+            if (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                return number();
+            }
+            String name = identifier();
+            if (name.isEmpty()) {
+                failed = true;
+                return null;
+            }
+            if (name.equals("defined")) {
+                boolean paren = accept("(");
+                skipSpaces();
+                String symbol = identifier();
+                if (symbol.isEmpty() || (paren && !accept(")"))) {
+                    failed = true;
+                    return null;
+                }
+                int result = isDefined(symbol);
+                return (result == UNKNOWN) ? null : (long) result;
+            }
+            if (!known.contains(name)) {
+                return null;
+            }
+            if (!defined.containsKey(name)) {
+                // Undefined symbols are 0 in a condition
+                return 0L;
+            }
+            // Use the value of the symbol
+            String value = defined.get(name);
+            return value.isEmpty() ? null : new Expression(value, depth + 1).evaluate();
+        }
+
+        private Long number() {
+            int start = pos;
+            while (pos < text.length() && isIdentifierPart(text.charAt(pos))) {
+                ++pos;
+            }
+            String digits = text.substring(start, pos).toLowerCase();
+            // Remove the unsigned / long suffixes
+            int end = digits.length();
+            while (end > 1 && (digits.charAt(end - 1) == 'u' || digits.charAt(end - 1) == 'l')) {
+                --end;
+            }
+            digits = digits.substring(0, end);
+            try {
+                if (digits.startsWith("0x")) {
+                    return Long.parseLong(digits.substring(2), 16);
+                } else if (digits.startsWith("0b")) {
+                    return Long.parseLong(digits.substring(2), 2);
+                } else if (digits.length() > 1 && digits.startsWith("0")) {
+                    return Long.parseLong(digits.substring(1), 8);
+                }
+                return Long.parseLong(digits);
+            } catch (NumberFormatException e) {
+                failed = true;
+                return null;
+            }
+        }
+
+        private String identifier() {
+            skipSpaces();
+            int start = pos;
+            if (pos < text.length() && (Character.isLetter(text.charAt(pos)) || text.charAt(pos) == '_')) {
+                while (pos < text.length() && isIdentifierPart(text.charAt(pos))) {
+                    ++pos;
+                }
+            }
+            return text.substring(start, pos);
+        }
+
+        private String acceptOperator(String[] ops) {
+            skipSpaces();
+            for (String op : ops) {
+                if (text.startsWith(op, pos) && !isLongerOperator(op)) {
+                    pos += op.length();
+                    return op;
+                }
+            }
+            return null;
+        }
+
+        // Keeps "|" from matching "||", "<" from matching "<<" or "<=", etc
+        private boolean isLongerOperator(String op) {
+            int next = pos + op.length();
+            if (next >= text.length()) {
+                return false;
+            }
+            char c = text.charAt(next);
+            switch (op) {
+                case "|": return c == '|';
+                case "&": return c == '&';
+                case "<": return c == '<' || c == '=';
+                case ">": return c == '>' || c == '=';
+                default: return false;
+            }
+        }
+
+        private boolean accept(String token) {
+            skipSpaces();
+            if (text.startsWith(token, pos)) {
+                pos += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private void skipSpaces() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                ++pos;
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+Inputs and outputs of the last run, so running again with the same inputs can be
+skipped.
+
+The key is a SHA-256 of everything the generated files depend on: the code of the
+sketch, the files it includes, feature.txt and the other files in the update folder,
+the library and tool versions and the settings. The hash of each generated file is
+saved with the key, so the files are known to be intact (not edited or deleted) when
+the run is skipped.
+
+The included files are only known after scanning, so the ones from the last run are
+saved too, along with the places checked for the includes that were not found. A change
+to the includes always changes one of those files (or the sketch), so the key still
+changes.
+
+The file is text, one item per line:
+    key <hex>
+    include <path>
+    output <hex> <path>
+*/
+public class RARunCache {
+    private static final String KEY = "key ";
+    private static final String INCLUDE = "include ";
+    private static final String OUTPUT = "output ";
+    private static final int HASH_LENGTH = 64;
+
+    private String key;
+    private final ArrayList<File> includes;
+    private final ArrayList<File> outputs;
+    private final ArrayList<String> outputHashes;
+
+    private RARunCache() {
+        key = "";
+        includes = new ArrayList<>();
+        outputs = new ArrayList<>();
+        outputHashes = new ArrayList<>();
+    }
+
+    // Returns the saved run, NULL if there is none (or it can not be read)
+    public static RARunCache load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        RARunCache cache = new RARunCache();
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith(KEY)) {
+                    cache.key = line.substring(KEY.length());
+                } else if (line.startsWith(INCLUDE)) {
+                    cache.includes.add(new File(line.substring(INCLUDE.length())));
+                } else if (line.startsWith(OUTPUT) && line.length() > OUTPUT.length() + HASH_LENGTH + 1) {
+                    String item = line.substring(OUTPUT.length());
+                    cache.outputHashes.add(item.substring(0, HASH_LENGTH));
+                    cache.outputs.add(new File(item.substring(HASH_LENGTH + 1)));
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return cache;
+    }
+
+    // Saves the run. When it can not be saved (such as a missing output), the last run is removed.
+    public static void save(File file, String key, List<File> includes, List<File> outputs) {
+        try (PrintWriter out = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+            out.println(KEY + key);
+            for (File include : includes) {
+                out.println(INCLUDE + include.getPath());
+            }
+            for (File output : outputs) {
+                out.println(OUTPUT + RAHash.toHex(RAHash.sha256(output)) + " " + output.getPath());
+            }
+        } catch (IOException e) {
+            RALog.console().verbose("Unable to save " + file.getName() + ": " + e.getMessage());
+            delete(file);
+        }
+    }
+
+    // Forget the last run, so the next one is not skipped
+    public static void delete(File file) {
+        if (file.isFile() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    // Files included by the sketch in the saved run
+    public List<File> getIncludes() {
+        return includes;
+    }
+
+    // Returns TRUE if the key is the same and the generated files were not changed
+    public boolean isUpToDate(String key) {
+        if (!this.key.equals(key) || outputs.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < outputs.size(); ++i) {
+            File output = outputs.get(i);
+            try {
+                if (!output.isFile() || !RAHash.toHex(RAHash.sha256(output)).equals(outputHashes.get(i))) {
+                    return false;
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the key for the settings (text) and the input files. A missing file is part
+    // of the key too.
+    public static String computeKey(List<? extends CharSequence> texts, List<File> files) {
+        MessageDigest md = RAHash.newDigest();
+        for (CharSequence text : texts) {
+            md.update(text.toString().getBytes(StandardCharsets.UTF_8));
+            // keeps "ab" + "c" from matching "a" + "bc"
+            md.update((byte) 0);
+        }
+        for (File f : files) {
+            md.update(f.getPath().getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            try {
+                md.update(f.isFile() ? RAHash.sha256(f) : new byte[0]);
+            } catch (IOException e) {
+                // Unreadable, never matches a saved key
+                md.update(Long.toString(System.nanoTime()).getBytes(StandardCharsets.UTF_8));
+            }
+            md.update((byte) 0);
+        }
+        return RAHash.toHex(md.digest());
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+/*
+Events sent by the RASketchScanner while it walks through the sketch.
+*/
+public interface RASketchListener {
+    // Called before any other event
+    void onScanStart();
+    // Line starting with a RA directive comment (// RA_LABEL, // RA_CLOUD_, etc)
+    void onDirective(String line);
+    // Keyword id from the keyword matcher found in the code
+    void onKeyword(int id);
+    // Relay expansion box used in the code (Box#_ or the two digit ports Port##)
+    void onRelayBox(int box);
+    // Custom menu entry used in the code (MenuEntry#)
+    void onMenuEntry(int entry);
+    // Local file included with #include "file" in the compiled code
+    void onInclude(String path);
+    // Version string set with ReefAngel.SetCodeVersion
+    void onCodeVersion(String version);
+    // Called after all the other events
+    void onScanEnd();
+}
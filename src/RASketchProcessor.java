@@ -0,0 +1,597 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.stream.Collectors;
+
+/*
+Runs the Features, Labels and Custom Settings processors for a sketch.
+
+This does not depend on the Arduino IDE, so it is used by both the CBTool plugin
+and the CBToolCli batch command.
+
+The three files do not share anything while they are generated, so the Labels and
+Custom Settings files are generated on a small shared pool while the Features file is
+generated on the calling thread. When the caller already runs many processors at once
+(CBToolCli), the pool is turned off with setParallelGenerators and all three files are
+generated on the calling thread. The messages from each file are kept in their own log
+and printed in the same order as before (Features, Labels, Custom Settings) once they
+finish, so the output does not change.
+
+The messages of each step are collected in a buffered log and printed in one batch at
+the end of the step.
+*/
+public class RASketchProcessor {
+    // Files in the sketch folder that are shown as tabs by the IDE
+    private static final List<String> TAB_EXTENSIONS = Arrays.asList("ino", "pde", "c", "cpp", "h", "hpp");
+    private static final int GENERATOR_THREADS = 2;
+    // Saved next to the generated features file, see RARunCache
+    private static final String RUN_CACHE_FILENAME = "cbtool.cache";
+    private static final ExecutorService generators = Executors.newFixedThreadPool(GENERATOR_THREADS, r -> {
+        Thread thread = new Thread(r, "CBTool generator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final RAFeatures featuresFile;
+    private final RALabels labelsFile;
+    private final RACustomSettings customSettings;
+    private String sketchFileName;
+    private RASketchScan lastScan;
+    private Map<String, String> defines;
+    private File sketchFolder;
+    private List<File> includedFiles;
+    // Included files and the places checked for the missing includes, for the run cache
+    private List<File> includeDependencies;
+    // Board budget, 0 uses the budget from the costs file
+    private long[] budget;
+    private boolean strictBudget;
+    private boolean withinBudget;
+    private boolean parallelGenerators;
+    // Each file is generated in its own buffer, since they are generated at the same time
+    private final RAHeaderWriter featuresOutput;
+    private final RAHeaderWriter labelsOutput;
+    private final RAHeaderWriter settingsOutput;
+    private final RALog log;
+
+    public RASketchProcessor() {
+        featuresFile = new RAFeatures();
+        labelsFile = new RALabels();
+        customSettings = new RACustomSettings();
+        sketchFileName = "";
+        defines = Collections.emptyMap();
+        includedFiles = Collections.emptyList();
+        includeDependencies = Collections.emptyList();
+        budget = new long[2];
+        withinBudget = true;
+        parallelGenerators = true;
+        featuresOutput = new RAHeaderWriter();
+        labelsOutput = new RAHeaderWriter();
+        settingsOutput = new RAHeaderWriter();
+        log = RALog.buffered();
+        featuresFile.setLog(log);
+        labelsFile.setLog(log);
+        customSettings.setLog(log);
+    }
+
+    // The generated files are stored in the libraries folder inside of the output folder
+    public void init(String outputFolder, String sketchFileName) {
+        this.sketchFileName = sketchFileName;
+        featuresFile.init(outputFolder, sketchFileName);
+        labelsFile.init(outputFolder, sketchFileName);
+        customSettings.init(outputFolder, sketchFileName);
+    }
+
+    // Folder with feature.txt, when it is not the update folder inside of the output folder
+    public void setUpdateFolder(String updateFolder) {
+        featuresFile.setUpdateFolder(updateFolder);
+    }
+
+    // Set to FALSE to never download a missing feature.txt while processing
+    public void setDownloadMissing(boolean downloadMissing) {
+        featuresFile.setDownloadMissing(downloadMissing);
+    }
+
+    // Symbols defined for the board, used for the #if / #ifdef blocks of the sketch
+    public void setDefines(Map<String, String> defines) {
+        this.defines = new HashMap<>(defines);
+    }
+
+    // Folder of the sketch, the local #include "file" references are followed from there.
+    // When not set, only the code given to scan is used.
+    public void setSketchFolder(File sketchFolder) {
+        this.sketchFolder = sketchFolder;
+    }
+
+    // Set to FALSE to generate all the files on the calling thread, when the caller is
+    // already one of many threads processing sketches
+    public void setParallelGenerators(boolean parallelGenerators) {
+        this.parallelGenerators = parallelGenerators;
+    }
+
+    // Bytes of flash and SRAM on the board, 0 to use the budget from the costs file.
+    // When strict, going over the budget is an error instead of a warning.
+    public void setBudget(long flash, long sram, boolean strict) {
+        budget[RAFootprint.FLASH] = flash;
+        budget[RAFootprint.SRAM] = sram;
+        strictBudget = strict;
+    }
+
+    // Returns FALSE if the last process was over a strict budget
+    public boolean isWithinBudget() {
+        return withinBudget;
+    }
+
+    public boolean hasPrerequisites() {
+        RAMetrics.Phase phase = RAMetrics.startPhase("hasPrerequisites", sketchFileName);
+        try {
+            if (! labelsFile.hasPrerequisites()) {
+                return false;
+            }
+            if (! featuresFile.hasPrerequisites()) {
+                return false;
+            }
+            if (! customSettings.hasPrerequisites()) {
+                return false;
+            }
+            return true;
+        } finally {
+            phase.end();
+            log.flush();
+        }
+    }
+
+    public void loadDefaults() {
+        RAMetrics.Phase phase = RAMetrics.startPhase("loadDefaults", sketchFileName);
+        try {
+            featuresFile.loadDefaults();
+            labelsFile.loadDefaults();
+            customSettings.loadDefaults();
+        } finally {
+            phase.end();
+            log.flush();
+        }
+    }
+
+    // Scan the code once, the results are shared by all the processors
+    public RASketchScan scan(CharSequence program) {
+        return scan(Collections.singletonList(program));
+    }
+
+    // Scans all the files of the sketch at the same time, then merges the results in the
+    // order of the files (main sketch file first)
+    public RASketchScan scan(List<? extends CharSequence> programs) {
+        RAMetrics.Phase phase = RAMetrics.startPhase("scan", sketchFileName);
+        try {
+            long bytes = 0;
+            for (CharSequence program : programs) {
+                bytes += program.length();
+            }
+            RAMetrics.get().addBytesScanned(bytes);
+            log.verbose("Scanning " + programs.size() + " file(s), " + bytes + " characters");
+            log.flush();
+            RASketchScanner scanner = new RASketchScanner(featuresFile.getKeywordMatcher(), defines);
+            List<RASketchScan> scans;
+            RASketchScan result;
+            if (programs.size() == 1) {
+                result = scanner.scan(programs.get(0));
+                scans = Collections.singletonList(result);
+            } else {
+                scans = programs.parallelStream()
+                        .map(scanner::scan)
+                        .collect(Collectors.toList());
+                result = new RASketchScan(featuresFile.getKeywordMatcher().getKeywordCount());
+                for (RASketchScan scan : scans) {
+                    result.merge(scan);
+                }
+            }
+            if (sketchFolder != null) {
+                RAIncludes includes = new RAIncludes(sketchFolder, featuresFile.getKeywordMatcher(), defines, log);
+                includes.follow(scans, result);
+                includedFiles = includes.getFiles();
+                includeDependencies = new ArrayList<>(includedFiles);
+                includeDependencies.addAll(includes.getMissing());
+                log.flush();
+            }
+            return result;
+        } finally {
+            phase.end();
+        }
+    }
+
+    // Local files included by the sketch in the last scan (not the tabs)
+    public List<File> getIncludedFiles() {
+        return includedFiles;
+    }
+
+    // Files in the update folder the generated files depend on (feature.txt, the rules and
+    // the costs)
+    public List<File> getDefinitionFiles() {
+        return featuresFile.getDefinitionFiles();
+    }
+
+    // Processes the scan results and saves the generated files
+    public void process(RASketchScan scan) throws IOException {
+        process(scan, true, true, true);
+    }
+
+    // Processes the scan again, but only for the files with changed inputs since the last
+    // process. Set definitionsChanged when feature.txt was changed.
+    // Returns TRUE if any of the files were processed.
+    public boolean update(RASketchScan scan, boolean definitionsChanged) throws IOException {
+        if (lastScan == null) {
+            process(scan);
+            return true;
+        }
+        boolean features = definitionsChanged || featuresFile.hasChangedInputs(lastScan, scan);
+        boolean labels = labelsFile.hasChangedInputs(lastScan, scan);
+        boolean settings = customSettings.hasChangedInputs(lastScan, scan);
+        if (!features && !labels && !settings) {
+            lastScan = scan;
+            return false;
+        }
+        // Start over with the defaults for the files being processed again
+        if (features) {
+            featuresFile.loadDefaults();
+        }
+        if (labels) {
+            labelsFile.loadDefaults();
+        }
+        if (settings) {
+            customSettings.loadDefaults();
+        }
+        process(scan, features, labels, settings);
+        return true;
+    }
+
+    // Reloads feature.txt, needed before scanning again when it changes
+    public void reloadDefinitions() {
+        featuresFile.loadDefaults();
+        log.flush();
+    }
+
+    private void process(RASketchScan scan, boolean features, boolean labels, boolean settings)
+            throws IOException {
+        RAMetrics.get().addRun();
+        RALog featuresLog = RALog.buffered();
+        RALog labelsLog = RALog.buffered();
+        RALog settingsLog = RALog.buffered();
+        Future<Boolean> labelsResult = null;
+        Future<Boolean> settingsResult = null;
+        if (labels) {
+            labelsResult = startGenerator(() -> generate(labelsFile, labelsOutput, labelsLog, scan, "labels",
+                    "Generating Custom Labels file from " + sketchFileName,
+                    "\nFinished detecting Labels."));
+        }
+        if (settings) {
+            // TODO process custom settings and display output
+            settingsResult = startGenerator(() -> generate(customSettings, settingsOutput, settingsLog, scan,
+                    "settings", "Generating Cloud Authentication (if any) from " + sketchFileName,
+                    "\nFinished detecting Cloud Authentication."));
+        }
+
+        // Wait for all of them before reporting, so a failure does not leave one running.
+        // They are waited for no matter how the features end, since they use the shared
+        // labelsFile and customSettings that the next run loads again.
+        boolean changed = false;
+        IOException error = null;
+        try {
+            if (features) {
+                try {
+                    changed |= generate(featuresFile, featuresOutput, featuresLog, scan, "features",
+                            "Generating Features file from " + sketchFileName,
+                            "\nFinished detecting Features.");
+                    RAMetrics.get().addFeaturesDetected(featuresFile.getDetectedCount());
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        } finally {
+            try {
+                changed |= getResult(labelsResult);
+            } catch (IOException e) {
+                error = (error != null) ? error : e;
+            }
+            try {
+                changed |= getResult(settingsResult);
+            } catch (IOException e) {
+                error = (error != null) ? error : e;
+            }
+        }
+
+        // Report in the same order every time
+        log.append(featuresLog);
+        log.append(labelsLog);
+        log.append(settingsLog);
+        try {
+            if (error != null) {
+                throw error;
+            }
+            RAMetrics.Phase phase = RAMetrics.startPhase("saveFile", "builddate");
+            try {
+                saveBuildDate(changed);
+            } finally {
+                phase.end();
+            }
+            lastScan = scan;
+            withinBudget = checkFootprint();
+        } finally {
+            log.flush();
+        }
+    }
+
+    // Returns TRUE if the inputs are the same as the last saved run and the generated files
+    // are intact, so there is nothing to do
+    public boolean isUpToDate(List<? extends CharSequence> programs, String librariesVersion, String toolVersion) {
+        RAMetrics.Phase phase = RAMetrics.startPhase("runCache", sketchFileName);
+        try {
+            RARunCache cache = RARunCache.load(getRunCacheFile());
+            if (cache == null) {
+                return false;
+            }
+            boolean upToDate = cache.isUpToDate(getRunKey(programs, librariesVersion, toolVersion,
+                    cache.getIncludes()));
+            if (upToDate) {
+                log.println("No changes since the last run, the generated files are up to date.");
+                log.flush();
+            }
+            return upToDate;
+        } finally {
+            phase.end();
+        }
+    }
+
+    // Saves the inputs and outputs of the run that just finished, for isUpToDate
+    public void saveRun(List<? extends CharSequence> programs, String librariesVersion, String toolVersion) {
+        File file = getRunCacheFile();
+        if (!withinBudget) {
+            // Run again to report it
+            RARunCache.delete(file);
+            return;
+        }
+        RARunCache.save(file, getRunKey(programs, librariesVersion, toolVersion, includeDependencies),
+                includeDependencies, Arrays.asList(new File(featuresFile.getFileName()),
+                        new File(featuresFile.getBuildDateFileName()), new File(labelsFile.getFileName()),
+                        new File(customSettings.getFileName())));
+    }
+
+    private File getRunCacheFile() {
+        return new File(new File(featuresFile.getFileName()).getParentFile(), RUN_CACHE_FILENAME);
+    }
+
+    private String getRunKey(List<? extends CharSequence> programs, String librariesVersion, String toolVersion,
+                             List<File> includes) {
+        ArrayList<CharSequence> texts = new ArrayList<>();
+        texts.add(toolVersion);
+        texts.add(librariesVersion);
+        texts.add(sketchFileName);
+        texts.add(String.valueOf(sketchFolder));
+        texts.add(new TreeMap<>(defines).toString());
+        texts.add(Arrays.toString(budget) + strictBudget);
+        texts.addAll(programs);
+        ArrayList<File> files = new ArrayList<>(featuresFile.getDefinitionFiles());
+        files.addAll(includes);
+        return RARunCache.computeKey(texts, files);
+    }
+
+    // Reports the estimated size of the generated features.
+    // Returns FALSE if it is over a strict budget.
+    private boolean checkFootprint() {
+        RAFootprint costs = RAFootprint.load(featuresFile.getCostsFile());
+        if (costs == null) {
+            log.verbose("No " + RAFootprint.COSTS_FILENAME + ", the size is not estimated");
+            return true;
+        }
+        RAMetrics.Phase phase = RAMetrics.startPhase("footprint", sketchFileName);
+        log.verbose("Estimated bytes (flash, SRAM):");
+        long[] estimate = costs.estimate(featuresFile.getActiveDefines(), labelsFile.getProgmemBytes(), log);
+        boolean over = false;
+        String[] names = {"flash", "SRAM"};
+        StringBuilder sb = new StringBuilder("Estimated size:");
+        for (int memory = RAFootprint.FLASH; memory <= RAFootprint.SRAM; ++memory) {
+            long available = (budget[memory] > 0) ? budget[memory] : costs.getBudget(memory);
+            sb.append((memory == RAFootprint.FLASH) ? " " : ", ");
+            sb.append(String.format("%s %d of %d bytes (%d%%)", names[memory], estimate[memory], available,
+                    (available > 0) ? estimate[memory] * 100 / available : 0));
+            over |= estimate[memory] > available;
+        }
+        log.println(sb.toString());
+        phase.end();
+        if (!over) {
+            return true;
+        }
+        if (strictBudget) {
+            log.error("Error: The estimated size is over the budget of the board.");
+            return false;
+        }
+        log.println("Warning: The estimated size is over the budget of the board, it may not fit.");
+        return true;
+    }
+
+    // Processes, generates and saves one file, keeping its messages in the file log.
+    // Returns TRUE if the file was written.
+    private boolean generate(RABaseFile file, RAHeaderWriter output, RALog fileLog, RASketchScan scan,
+                             String name, String start, String finish) throws IOException {
+        file.setLog(fileLog);
+        try {
+            fileLog.println(start);
+            boolean written = processFile(file, output, scan, name);
+            fileLog.println(finish);
+            return written;
+        } finally {
+            file.setLog(log);
+        }
+    }
+
+    // Starts the generator on the pool, or runs it right away when the pool is not used
+    private Future<Boolean> startGenerator(Callable<Boolean> generator) {
+        if (parallelGenerators) {
+            return generators.submit(generator);
+        }
+        FutureTask<Boolean> task = new FutureTask<>(generator);
+        task.run();
+        return task;
+    }
+
+    private static boolean getResult(Future<Boolean> result) throws IOException {
+        if (result == null) {
+            return false;
+        }
+        // Interrupting (cancelling the run) does not stop the wait, the generator is always
+        // finished before returning. The interrupt is kept for the caller.
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return result.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Returns TRUE if the generated file was written
+    private static boolean processFile(RABaseFile file, RAHeaderWriter output, RASketchScan scan, String name)
+            throws IOException {
+        RAMetrics.Phase phase = RAMetrics.startPhase("process", name);
+        try {
+            file.process(scan);
+        } finally {
+            phase.end();
+        }
+        phase = RAMetrics.startPhase("generateFile", name);
+        try {
+            output.reset();
+            file.writeFile(output);
+        } finally {
+            phase.end();
+        }
+        phase = RAMetrics.startPhase("saveFile", name);
+        try {
+            return saveFile(file, output);
+        } finally {
+            phase.end();
+        }
+    }
+
+    // The sketch file first, followed by the other tabs sorted by name
+    public static List<File> getSketchFiles(File sketch) throws IOException {
+        if (!sketch.isFile()) {
+            throw new IOException("Sketch not found: " + sketch);
+        }
+        ArrayList<File> files = new ArrayList<>();
+        files.add(sketch);
+        File[] others = sketch.getAbsoluteFile().getParentFile().listFiles();
+        if (others != null) {
+            Arrays.sort(others);
+            for (File f : others) {
+                if (f.isFile() && !f.getName().equals(sketch.getName()) && isSketchFile(f)) {
+                    files.add(f);
+                }
+            }
+        }
+        return files;
+    }
+
+    // Returns TRUE if the file is shown as a tab by the IDE
+    public static boolean isSketchFile(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 && TAB_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase());
+    }
+
+    public static List<String> readPrograms(List<File> files) throws IOException {
+        ArrayList<String> programs = new ArrayList<>();
+        for (File f : files) {
+            programs.add(new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8));
+        }
+        return programs;
+    }
+
+    public void displayCodeVersionString(RASketchScan scan) {
+        // The code version is found by the scanner from the ReefAngel.SetCodeVersion call
+        String version = scan.getCodeVersion();
+        log.println("User Code Version: " + (version.isEmpty() ? "NONE" : version));
+        log.flush();
+    }
+
+    // Returns TRUE if the file was written, FALSE if the contents were unchanged
+    private static boolean saveFile(RABaseFile generated, RAHeaderWriter output) throws IOException {
+        File file = new File(generated.getFileName());
+        boolean written = output.writeIfChanged(file);
+        RAMetrics.get().addFileSaved(written);
+        if (!written) {
+            // Leave the file alone so the libraries are not recompiled
+            generated.log().println("No changes to " + file.getName());
+            return false;
+        }
+        return true;
+    }
+
+    private void saveBuildDate(boolean changed) throws IOException {
+        // Only update the build date when the generated files change, a new date on every run
+        // would rebuild the libraries every time
+        File file = new File(featuresFile.getBuildDateFileName());
+        if (changed || !file.exists()) {
+            featuresOutput.reset();
+            featuresFile.writeBuildDateFile(featuresOutput);
+            featuresOutput.writeIfChanged(file);
+            log.println("Build Date set to: " + featuresFile.getBuildDate());
+        } else {
+            log.println("Build Date unchanged.");
+        }
+    }
+}
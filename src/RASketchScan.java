@@ -0,0 +1,154 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/*
+Results of scanning the sketch.
+
+The scanner records the events here, then each processor receives the events
+with dispatch. The sketch only gets scanned once no matter how many processors use it.
+Each file (tab) of the sketch gets its own scan, the scans are then merged together.
+*/
+public class RASketchScan implements RASketchListener {
+    private final BitSet keywords;
+    private final ArrayList<String> directives;
+    private final ArrayList<String> includes;
+    private String codeVersion;
+    // Highest relay box and menu entry numbers used, 0 if none
+    private int relayBoxes;
+    private int menuEntries;
+
+    public RASketchScan(int keywordCount) {
+        keywords = new BitSet(keywordCount);
+        directives = new ArrayList<>();
+        includes = new ArrayList<>();
+        codeVersion = "";
+    }
+
+    public void onScanStart() {
+    }
+
+    public void onDirective(String line) {
+        directives.add(line);
+    }
+
+    public void onKeyword(int id) {
+        keywords.set(id);
+    }
+
+    public void onRelayBox(int box) {
+        relayBoxes = Math.max(relayBoxes, box);
+    }
+
+    public void onMenuEntry(int entry) {
+        menuEntries = Math.max(menuEntries, entry);
+    }
+
+    public void onInclude(String path) {
+        includes.add(path);
+    }
+
+    public void onCodeVersion(String version) {
+        codeVersion = version;
+    }
+
+    public void onScanEnd() {
+    }
+
+    public String getCodeVersion() {
+        return codeVersion;
+    }
+
+    // Local files included by the code, in the order they were found
+    public List<String> getIncludes() {
+        return Collections.unmodifiableList(includes);
+    }
+
+    // Returns TRUE if both scans found the same keywords
+    public boolean hasSameKeywords(RASketchScan other) {
+        return keywords.equals(other.keywords);
+    }
+
+    // Returns TRUE if both scans use the same number of relay boxes and menu entries
+    public boolean hasSameReferences(RASketchScan other) {
+        return relayBoxes == other.relayBoxes && menuEntries == other.menuEntries;
+    }
+
+    // Returns TRUE if both scans have the same directive lines starting with the prefix
+    public boolean hasSameDirectives(RASketchScan other, String prefix) {
+        return getDirectives(prefix).equals(other.getDirectives(prefix));
+    }
+
+    private ArrayList<String> getDirectives(String prefix) {
+        ArrayList<String> list = new ArrayList<>();
+        for (String line : directives) {
+            if (line.startsWith(prefix)) {
+                list.add(line);
+            }
+        }
+        return list;
+    }
+
+    // Adds the results from another file of the sketch. Merging the files in the same
+    // order always gives the same results, no matter which file finished scanning first.
+    public void merge(RASketchScan other) {
+        keywords.or(other.keywords);
+        directives.addAll(other.directives);
+        includes.addAll(other.includes);
+        relayBoxes = Math.max(relayBoxes, other.relayBoxes);
+        menuEntries = Math.max(menuEntries, other.menuEntries);
+        if (codeVersion.isEmpty()) {
+            codeVersion = other.codeVersion;
+        }
+    }
+
+    // Sends the recorded events to the listener
+    public void dispatch(RASketchListener listener) {
+        listener.onScanStart();
+        for (String line : directives) {
+            listener.onDirective(line);
+        }
+        for (String path : includes) {
+            listener.onInclude(path);
+        }
+        for (int id = keywords.nextSetBit(0); id >= 0; id = keywords.nextSetBit(id + 1)) {
+            listener.onKeyword(id);
+        }
+        if (relayBoxes > 0) {
+            listener.onRelayBox(relayBoxes);
+        }
+        if (menuEntries > 0) {
+            listener.onMenuEntry(menuEntries);
+        }
+        if (!codeVersion.isEmpty()) {
+            listener.onCodeVersion(codeVersion);
+        }
+        listener.onScanEnd();
+    }
+}
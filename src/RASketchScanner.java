@@ -0,0 +1,340 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+import java.util.Collections;
+import java.util.Map;
+
+/*
+Walks through the sketch code one time and sends the events to the listener.
+
+Everything the processors need is found in this single pass:
+    - the RA directive comments at the start of a line
+    - the keywords from the keyword matcher
+    - the user code version
+    - the highest relay box and custom menu entry numbers used
+    - the local files included with #include "file"
+
+The conditional directives (#if, #ifdef, #else, #endif, ...) are followed with the
+RAPreprocessor. The code in a branch that is not compiled is skipped like a comment,
+so only the code in the active branches counts toward the detection.
+
+The scanner also keeps track of comments and string / character literals, like a
+very small C/C++ lexer. Only the real code is searched for keywords, so commented
+out code or text inside of a string does not turn on a feature. The RA directive
+comments are still reported since they are checked at the start of every line.
+*/
+public class RASketchScanner {
+    public static final String DIRECTIVE_LINE_START = "// RA_";
+    private static final int MODE_CODE = 0;
+    private static final int MODE_LINE_COMMENT = 1;
+    private static final int MODE_BLOCK_COMMENT = 2;
+    private static final int MODE_STRING = 3;
+    private static final int MODE_CHAR = 4;
+    private static final String CODE_VERSION_START = "ReefAngel.SetCodeVersion(\"";
+    private static final String CODE_VERSION_END = "\");";
+    private static final String RELAY_BOX_PREFIX = "Box";
+    private static final String PORT_PREFIX = "Port";
+    private static final String MENU_ENTRY_PREFIX = "MenuEntry";
+    // Largest number read from an identifier, to keep the value from overflowing
+    private static final int MAX_NUMBER_DIGITS = 9;
+
+    private final RAKeywordMatcher matcher;
+    private final Map<String, String> defines;
+
+    public RASketchScanner(RAKeywordMatcher matcher) {
+        this(matcher, Collections.<String, String>emptyMap());
+    }
+
+    // defines are the symbols set for the board, see RAPreprocessor
+    public RASketchScanner(RAKeywordMatcher matcher, Map<String, String> defines) {
+        this.matcher = matcher;
+        this.defines = defines;
+    }
+
+    // Scans the code and records the events
+    public RASketchScan scan(CharSequence code) {
+        RASketchScan result = new RASketchScan(matcher.getKeywordCount());
+        scan(code, result);
+        return result;
+    }
+
+    public void scan(CharSequence code, RASketchListener listener) {
+        listener.onScanStart();
+        int length = code.length();
+        int state = RAKeywordMatcher.ROOT;
+        boolean lineStart = true;
+        // only spaces since the start of the line, a # starts a preprocessor directive
+        boolean lineBlank = true;
+        RAPreprocessor preprocessor = new RAPreprocessor(defines);
+        boolean foundVersion = false;
+        int mode = MODE_CODE;
+        boolean escape = false;
+        int identifierStart = -1;
+        for (int i = 0; i < length; ++i) {
+            char c = code.charAt(i);
+            if (lineStart && c == '/' && startsWith(code, i, DIRECTIVE_LINE_START)) {
+                int end = findLineEnd(code, i);
+                listener.onDirective(code.subSequence(i, trimLineEnd(code, i, end)).toString());
+            }
+            lineStart = (c == '\n');
+            if (lineStart) {
+                lineBlank = true;
+            }
+            switch (mode) {
+                case MODE_LINE_COMMENT:
+                    if (c == '\n') {
+                        mode = MODE_CODE;
+                    }
+                    continue;
+                case MODE_BLOCK_COMMENT:
+                    if (c == '*' && next(code, i) == '/') {
+                        mode = MODE_CODE;
+                        ++i;
+                    }
+                    continue;
+                case MODE_STRING:
+                case MODE_CHAR:
+                    if (escape) {
+                        escape = false;
+                    } else if (c == '\\') {
+                        escape = true;
+                    } else if (c == '\n'
+                            || (mode == MODE_STRING && c == '"')
+                            || (mode == MODE_CHAR && c == '\'')) {
+                        // end of the literal (or an unterminated one at the end of the line)
+                        mode = MODE_CODE;
+                    }
+                    continue;
+                default:
+                    break;
+            }
+
+            if (c == '#' && lineBlank) {
+                String directive = readDirective(code, i);
+                preprocessor.directive(directive);
+                String include = RAPreprocessor.getLocalInclude(directive);
+                if (include != null && preprocessor.isActive()) {
+                    listener.onInclude(include);
+                }
+            }
+            if (c > ' ') {
+                lineBlank = false;
+            }
+            if (!preprocessor.isActive()) {
+                // Not compiled, only the comments and literals are followed
+                state = RAKeywordMatcher.ROOT;
+                identifierStart = -1;
+                if (c == '/' && next(code, i) == '/') {
+                    mode = MODE_LINE_COMMENT;
+                } else if (c == '/' && next(code, i) == '*') {
+                    mode = MODE_BLOCK_COMMENT;
+                    ++i;
+                } else if (c == '"') {
+                    mode = MODE_STRING;
+                } else if (c == '\'') {
+                    mode = MODE_CHAR;
+                }
+                continue;
+            }
+
+            // Regular code, check the identifiers for numbered references
+            if (isIdentifierPart(c)) {
+                if (identifierStart < 0) {
+                    identifierStart = i;
+                }
+            } else if (identifierStart >= 0) {
+                reportReferences(code, identifierStart, i, listener);
+                identifierStart = -1;
+            }
+
+            // Check for the start of a comment or literal
+            if (c == '/' && next(code, i) == '/') {
+                mode = MODE_LINE_COMMENT;
+                state = RAKeywordMatcher.ROOT;
+                continue;
+            } else if (c == '/' && next(code, i) == '*') {
+                mode = MODE_BLOCK_COMMENT;
+                state = RAKeywordMatcher.ROOT;
+                ++i;
+                continue;
+            } else if (c == '"') {
+                mode = MODE_STRING;
+                state = RAKeywordMatcher.ROOT;
+                continue;
+            } else if (c == '\'') {
+                mode = MODE_CHAR;
+                state = RAKeywordMatcher.ROOT;
+                continue;
+            }
+
+            if (!foundVersion && c == 'R' && startsWith(code, i, CODE_VERSION_START)) {
+                foundVersion = true;
+                int start = i + CODE_VERSION_START.length();
+                int end = indexOf(code, CODE_VERSION_END, start);
+                if (end >= 0) {
+                    listener.onCodeVersion(code.subSequence(start, end).toString());
+                }
+            }
+            state = matcher.next(state, c);
+            if (matcher.hasMatch(state)) {
+                reportKeywords(state, listener);
+            }
+        }
+        if (identifierStart >= 0) {
+            reportReferences(code, identifierStart, length, listener);
+        }
+        listener.onScanEnd();
+    }
+
+    private void reportKeywords(int state, RASketchListener listener) {
+        for (int m = matcher.getMatchStart(state); m < matcher.getMatchEnd(state); ++m) {
+            listener.onKeyword(matcher.getMatchId(m));
+        }
+    }
+
+    // Looks for the relay box and menu entry numbers in the identifier:
+    //     Box#_      relay expansion box #, used for the ports (Box1_Port1)
+    //     Port##     two digit port, the first digit is the relay expansion box (Port81)
+    //     MenuEntry# custom menu entry #
+    private static void reportReferences(CharSequence code, int start, int end, RASketchListener listener) {
+        for (int i = start; i < end; ++i) {
+            char c = code.charAt(i);
+            if (c == 'B' && startsWith(code, i, RELAY_BOX_PREFIX)) {
+                int from = i + RELAY_BOX_PREFIX.length();
+                int digits = countDigits(code, from, end);
+                if (digits > 0 && from + digits < end && code.charAt(from + digits) == '_') {
+                    listener.onRelayBox(parseNumber(code, from, digits));
+                }
+            } else if (c == 'P' && startsWith(code, i, PORT_PREFIX)) {
+                int from = i + PORT_PREFIX.length();
+                if (countDigits(code, from, end) == 2) {
+                    int box = code.charAt(from) - '0';
+                    if (box > 0) {
+                        listener.onRelayBox(box);
+                    }
+                }
+            } else if (c == 'M' && startsWith(code, i, MENU_ENTRY_PREFIX)) {
+                int from = i + MENU_ENTRY_PREFIX.length();
+                int digits = countDigits(code, from, end);
+                if (digits > 0) {
+                    listener.onMenuEntry(parseNumber(code, from, digits));
+                }
+            }
+        }
+    }
+
+    // Returns the directive starting at the offset, with the continued lines joined and
+    // the comments removed
+    private static String readDirective(CharSequence code, int offset) {
+        StringBuilder sb = new StringBuilder();
+        int i = offset;
+        while (i < code.length()) {
+            char c = code.charAt(i);
+            if (c == '\n') {
+                break;
+            } else if (c == '\\' && (next(code, i) == '\n'
+                    || (next(code, i) == '\r' && i + 2 < code.length() && code.charAt(i + 2) == '\n'))) {
+                // line continues on the next line
+                i = findLineEnd(code, i) + 1;
+                sb.append(' ');
+                continue;
+            } else if (c == '/' && next(code, i) == '/') {
+                break;
+            } else if (c == '/' && next(code, i) == '*') {
+                int end = indexOf(code, "*/", i + 2);
+                if (end < 0) {
+                    break;
+                }
+                sb.append(' ');
+                i = end + 2;
+                continue;
+            }
+            sb.append(c);
+            ++i;
+        }
+        return sb.toString();
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private static int countDigits(CharSequence code, int from, int end) {
+        int i = from;
+        while (i < end && code.charAt(i) >= '0' && code.charAt(i) <= '9') {
+            ++i;
+        }
+        return i - from;
+    }
+
+    private static int parseNumber(CharSequence code, int from, int digits) {
+        int value = 0;
+        for (int i = from; i < from + Math.min(digits, MAX_NUMBER_DIGITS); ++i) {
+            value = value * 10 + (code.charAt(i) - '0');
+        }
+        return value;
+    }
+
+    private static char next(CharSequence code, int offset) {
+        return (offset + 1 < code.length()) ? code.charAt(offset + 1) : 0;
+    }
+
+    private static boolean startsWith(CharSequence code, int offset, String prefix) {
+        if (offset + prefix.length() > code.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); ++i) {
+            if (code.charAt(offset + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(CharSequence code, String s, int from) {
+        for (int i = from; i <= code.length() - s.length(); ++i) {
+            if (startsWith(code, i, s)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int findLineEnd(CharSequence code, int from) {
+        int i = from;
+        while (i < code.length() && code.charAt(i) != '\n') {
+            ++i;
+        }
+        return i;
+    }
+
+    private static int trimLineEnd(CharSequence code, int start, int end) {
+        // Windows line endings
+        if (end > start && code.charAt(end - 1) == '\r') {
+            return end - 1;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+/*
+Watch mode, keeps the generated files up to date in the background.
+
+The sketch folder, the folders of the included files and the update folder
+(feature.txt, feature_rules.txt and feature_costs.txt) are watched for changes.
+Saving a file usually causes a burst of events, so the events are collected until
+the folders have been quiet for a moment. Then the sketch is scanned again and only
+the processors with changed inputs are run (see RASketchProcessor.update).
+
+The processor given to the watcher must not be used by anything else while watching.
+*/
+public class RASketchWatcher implements Runnable {
+    private static final long DEBOUNCE_MS = 500;
+
+    private final RASketchProcessor processor;
+    private final File sketch;
+    private final File updateFolder;
+    private WatchService watchService;
+    private final HashSet<Path> folders;
+    // Names of the files in the update folder that are reloaded when they change
+    private final HashSet<String> definitions;
+    private Thread thread;
+
+    // updateFolder is the folder containing feature.txt
+    public RASketchWatcher(RASketchProcessor processor, File sketch, File updateFolder) {
+        this.processor = processor;
+        this.sketch = sketch.getAbsoluteFile();
+        this.updateFolder = updateFolder.getAbsoluteFile();
+        folders = new HashSet<>();
+        definitions = new HashSet<>();
+        for (File file : processor.getDefinitionFiles()) {
+            definitions.add(file.getName());
+        }
+    }
+
+    public synchronized void start() throws IOException {
+        if (thread != null) {
+            return;
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        register(sketch.getParentFile().toPath());
+        register(updateFolder.toPath());
+        registerIncludes();
+        thread = new Thread(this, "CBTool watcher: " + sketch.getName());
+        thread.setDaemon(true);
+        thread.start();
+        RALog.console().println("Watching " + sketch.getParent() + " for changes.");
+    }
+
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            // Closing anyways
+        }
+        thread.interrupt();
+        thread = null;
+    }
+
+    public synchronized boolean isRunning() {
+        return thread != null;
+    }
+
+    public File getSketch() {
+        return sketch;
+    }
+
+    private void register(Path dir) throws IOException {
+        if (!folders.add(dir)) {
+            return;
+        }
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    // Watches the folders of the files included by the last scan
+    private void registerIncludes() throws IOException {
+        for (File file : processor.getIncludedFiles()) {
+            register(file.getParentFile().toPath());
+        }
+    }
+
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watchService.take();
+                boolean[] changes = new boolean[2];
+                collect(key, changes);
+                // Wait for the burst of events to end
+                while ((key = watchService.poll(DEBOUNCE_MS, TimeUnit.MILLISECONDS)) != null) {
+                    collect(key, changes);
+                }
+                if (changes[0] || changes[1]) {
+                    update(changes[1]);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped watching
+        }
+    }
+
+    // changes[0] - sketch files changed, changes[1] - feature.txt, the rules or the costs changed
+    private void collect(WatchKey key, boolean[] changes) {
+        Path dir = (Path) key.watchable();
+        boolean isUpdateFolder = dir.equals(updateFolder.toPath());
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changes[0] = true;
+                continue;
+            }
+            File file = dir.resolve((Path) event.context()).toFile();
+            if (isUpdateFolder && definitions.contains(file.getName())) {
+                changes[1] = true;
+            } else if (!isUpdateFolder && RASketchProcessor.isSketchFile(file)) {
+                changes[0] = true;
+            }
+        }
+        key.reset();
+    }
+
+    private void update(boolean definitionsChanged) {
+        try {
+            if (definitionsChanged) {
+                RALog.console().println("\nFeature definitions changed, reloading.");
+                processor.reloadDefinitions();
+            } else {
+                RALog.console().println("\nSketch changed, checking for updates.");
+            }
+            RASketchScan scan = processor.scan(RASketchProcessor.readPrograms(
+                    RASketchProcessor.getSketchFiles(sketch)));
+            if (!processor.update(scan, definitionsChanged)) {
+                RALog.console().println("No changes to the generated files.");
+            }
+            registerIncludes();
+        } catch (IOException e) {
+            RALog.console().error("Error updating generated files: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * MIT License
+ * Copyright (c) 2020 Curt Binder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package info.curtbinder.arduino.tool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/*
+Installs a new version of the tool from the release zip files.
+
+The release zip (CBTool-vX.Y.Z.zip) is never saved to disk. It is read from the server
+once, through a SHA-256 digest, and extracted while it is read into a staging folder
+inside of the tools folder:
+    tools/.CBTool-update-X.Y.Z/CBTool/tool/cbtool.jar
+After the last entry, the rest of the zip is read so the hash covers the whole file,
+and it is compared against CBTool-vX.Y.Z.zip.sha256 from the server. Only then is the
+staged CBTool folder moved over tools/CBTool. The current folder is moved aside first
+and put back if the new one cannot be moved into place, so the tool is never left half
+installed. The new version is used after restarting Arduino.
+
+On Windows the current folder cannot be moved while Arduino has cbtool.jar open, which
+is always the case while the tool runs. The verified update is then kept in
+tools/.CBTool-pending/CBTool and moved into place once Arduino is closed, by a small
+process started when Java exits (run from a copy of the current jar, so nothing in the
+tools folder is in use). If that fails, it is tried again the next time Arduino closes.
+
+The base URL can be any URL (http, https, file), so a local folder such as the
+distribution folder can stand in for the server (see update-test.sh). This does not use
+the IDE and takes a while, so it must be run on a background thread.
+
+Usage (the same as the tool does, without Arduino):
+    java -cp cbtool.jar info.curtbinder.arduino.tool.RAUpdater <base url> <tools folder> <version>
+    java -cp cbtool.jar info.curtbinder.arduino.tool.RAUpdater --finish <tools folder>
+*/
+public class RAUpdater {
+    private static final String ZIP_FILENAME_FORMAT = "CBTool-v%s.zip";
+    private static final String CHECKSUM_EXTENSION = ".sha256";
+    private static final String TOOL_FOLDER = "CBTool";
+    private static final String STAGING_PREFIX = ".CBTool-update-";
+    private static final String PREVIOUS_PREFIX = ".CBTool-previous-";
+    private static final String PENDING_FOLDER = ".CBTool-pending";
+    private static final String FINISH_LOG = "cbtool-update.log";
+    private static final String FINISH_JAR = "cbtool-update.jar";
+    private static final String FINISH_OPTION = "--finish";
+    // Time given to Arduino to exit and release cbtool.jar
+    private static final long FINISH_TIMEOUT_MS = 60000;
+    private static final long FINISH_RETRY_MS = 500;
+    private static final AtomicBoolean finishOnExit = new AtomicBoolean();
+
+    private final String baseUrl;
+    private final File toolsFolder;
+    private final RADownloader downloader;
+
+    // baseUrl is the folder on the server with the release files
+    public RAUpdater(String baseUrl, File toolsFolder) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+        this.toolsFolder = toolsFolder;
+        downloader = new RADownloader();
+    }
+
+    // Returns TRUE if the latest version is newer than the current version
+    public static boolean isNewer(String latest, String current) {
+        try {
+            return new CBVersion(latest.trim()).compareTo(new CBVersion(current.trim())) > 0;
+        } catch (NumberFormatException e) {
+            // Not a version number
+            return false;
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            if (args.length == 2 && args[0].equals(FINISH_OPTION)) {
+                // Started when Arduino exits, wait for it to release the installed folder
+                RAUpdater updater = new RAUpdater("", new File(args[1]));
+                long end = System.currentTimeMillis() + FINISH_TIMEOUT_MS;
+                while (!updater.finishPending()) {
+                    if (!updater.hasPending() || System.currentTimeMillis() > end) {
+                        System.exit(1);
+                    }
+                    Thread.sleep(FINISH_RETRY_MS);
+                }
+                System.out.println("Installed " + new File(args[1], TOOL_FOLDER));
+            } else if (args.length == 3) {
+                RAUpdater updater = new RAUpdater(args[0], new File(args[1]));
+                System.out.println(updater.install(args[2]) ? "Installed v" + args[2]
+                        : "The current version is in use, run with " + FINISH_OPTION + " once it is not");
+            } else {
+                System.err.println("Usage: RAUpdater <base url> <tools folder> <version>");
+                System.err.println("       RAUpdater " + FINISH_OPTION + " <tools folder>");
+                System.exit(2);
+            }
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Downloads, verifies and installs the version. Returns TRUE if it was installed,
+    // FALSE if the current version is in use, the update is then pending (see finishOnExit).
+    public boolean install(String version) throws IOException {
+        String zipName = String.format(ZIP_FILENAME_FORMAT, version);
+        String expected = readChecksum(new URL(baseUrl + zipName + CHECKSUM_EXTENSION));
+        deletePrevious();
+        File staging = new File(toolsFolder, STAGING_PREFIX + version);
+        deleteTree(staging);
+        try {
+            extract(new URL(baseUrl + zipName), staging, expected);
+            File staged = new File(staging, TOOL_FOLDER);
+            if (!staged.isDirectory()) {
+                throw new IOException(zipName + " does not contain the " + TOOL_FOLDER + " folder");
+            }
+            if (swap(staged, new File(toolsFolder, TOOL_FOLDER))) {
+                return true;
+            }
+            File pending = new File(toolsFolder, PENDING_FOLDER);
+            deleteTree(pending);
+            Files.move(staging.toPath(), pending.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return false;
+        } finally {
+            deleteTree(staging);
+        }
+    }
+
+    // The checksum file has the same format as shasum: "<hash>  <file name>"
+    private String readChecksum(URL url) throws IOException {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(downloader.openStream(url),
+                StandardCharsets.US_ASCII))) {
+            String line = br.readLine();
+            String hash = (line != null) ? line.trim().split("\\s+")[0] : "";
+            if (hash.length() != 64) {
+                throw new IOException("Invalid checksum file " + url);
+            }
+            return hash;
+        }
+    }
+
+    private void extract(URL url, File staging, String expected) throws IOException {
+        MessageDigest md = RAHash.newDigest();
+        byte[] buffer = new byte[8192];
+        String canonicalStaging = staging.getCanonicalPath() + File.separator;
+        try (DigestInputStream in = new DigestInputStream(new BufferedInputStream(downloader.openStream(url)), md);
+             ZipInputStream zip = new ZipInputStream(in)) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                File file = new File(staging, entry.getName());
+                if (!file.getCanonicalPath().startsWith(canonicalStaging)) {
+                    throw new IOException("Invalid entry in the zip file: " + entry.getName());
+                }
+                if (entry.isDirectory()) {
+                    mkdirs(file);
+                    continue;
+                }
+                mkdirs(file.getParentFile());
+                try (OutputStream out = new FileOutputStream(file)) {
+                    int count;
+                    while ((count = zip.read(buffer)) > 0) {
+                        out.write(buffer, 0, count);
+                    }
+                }
+            }
+            // Read the rest of the zip (central directory), so the hash is for the whole file
+            while (in.read(buffer) >= 0) {
+                // only hashing
+            }
+        }
+        if (!RAHash.toHex(md.digest()).equalsIgnoreCase(expected)) {
+            throw new IOException("Checksum mismatch for " + url);
+        }
+    }
+
+    // Returns TRUE if there is an update waiting for the current version to be released
+    public boolean hasPending() {
+        return new File(toolsFolder, PENDING_FOLDER + File.separator + TOOL_FOLDER).isDirectory();
+    }
+
+    // Installs the pending update, if there is one. Returns TRUE if it was installed.
+    public boolean finishPending() throws IOException {
+        if (!hasPending()) {
+            return false;
+        }
+        File pending = new File(toolsFolder, PENDING_FOLDER);
+        if (!swap(new File(pending, TOOL_FOLDER), new File(toolsFolder, TOOL_FOLDER))) {
+            return false;
+        }
+        deleteTree(pending);
+        return true;
+    }
+
+    // Called when the tool starts: installs the pending update, or tries again when Java exits
+    public void resumePending() {
+        try {
+            if (!finishPending() && hasPending()) {
+                finishOnExit();
+            }
+        } catch (IOException e) {
+            RALog.console().error("Unable to install the pending update: " + e.getMessage());
+        }
+    }
+
+    // Starts the process that installs the pending update when Java exits (once)
+    public void finishOnExit() {
+        if (!finishOnExit.compareAndSet(false, true)) {
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                new ProcessBuilder(getJava(), "-cp", copyClassPath(), RAUpdater.class.getName(), FINISH_OPTION,
+                        toolsFolder.getPath())
+                        .redirectErrorStream(true)
+                        .redirectOutput(new File(System.getProperty("java.io.tmpdir"), FINISH_LOG))
+                        .start();
+            } catch (IOException | URISyntaxException | SecurityException e) {
+                // Tried again the next time Arduino closes
+            }
+        }, "CBTool update"));
+    }
+
+    // Returns a copy of the running jar, so the process finishing the update does not keep
+    // anything in the tools folder in use. When not run from a jar, the classes are used as is.
+    private static String copyClassPath() throws IOException, URISyntaxException {
+        File running = new File(RAUpdater.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        if (!running.isFile()) {
+            return running.getPath();
+        }
+        // Always the same name, so only one copy is left behind
+        File copy = new File(System.getProperty("java.io.tmpdir"), FINISH_JAR);
+        Files.copy(running.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return copy.getPath();
+    }
+
+    // The Java running the tool, without a console window on Windows
+    private static String getJava() {
+        File bin = new File(System.getProperty("java.home"), "bin");
+        File javaw = new File(bin, "javaw.exe");
+        return javaw.isFile() ? javaw.getPath() : new File(bin, "java").getPath();
+    }
+
+    // Returns FALSE if the installed folder is in use (Windows keeps the jar locked while
+    // Arduino runs), it is then left as is
+    private static boolean swap(File staged, File installed) throws IOException {
+        File previous = new File(installed.getParentFile(), PREVIOUS_PREFIX + System.currentTimeMillis());
+        boolean moved = false;
+        if (installed.exists()) {
+            try {
+                Files.move(installed.toPath(), previous.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileSystemException e) {
+                return false;
+            }
+            moved = true;
+        }
+        try {
+            Files.move(staged.toPath(), installed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (moved) {
+                // Put the current version back
+                Files.move(previous.toPath(), installed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            throw e;
+        }
+        if (moved) {
+            deleteTree(previous);
+        }
+        return true;
+    }
+
+    // Removes the versions left behind by earlier updates
+    private void deletePrevious() {
+        File[] files = toolsFolder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(PREVIOUS_PREFIX)) {
+                deleteTree(file);
+            }
+        }
+    }
+
+    private static void mkdirs(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,64 @@
+#!/bin/sh
+
+# Runs the updater against the release zips in distribution/, standing in for the server.
+# Checks that a release is verified and installed, that a bad checksum leaves the
+# installed version alone, and (when chattr can lock a folder, as root on Linux) that an
+# update for a folder in use is kept and installed by --finish once it is released.
+VERSION="${1:-2.3.1}"
+WORK=`mktemp -d`
+TOOLS="$WORK/tools"
+UPDATER="java -cp $WORK/bin info.curtbinder.arduino.tool.RAUpdater"
+STATUS=0
+
+fail() {
+  echo "FAILED: $1"
+  STATUS=1
+}
+
+# The updater does not depend on the Arduino jars
+javac -target 1.8 -source 1.8 \
+  -d "$WORK/bin" \
+  src/CBVersion.java \
+  src/RA*.java || exit 1
+
+install_old() {
+  rm -rf "$TOOLS"
+  mkdir -p "$TOOLS/CBTool/tool"
+  echo old > "$TOOLS/CBTool/tool/cbtool.jar"
+}
+
+unzip -p "distribution/CBTool-v$VERSION.zip" CBTool/tool/cbtool.jar > "$WORK/expected.jar"
+
+# Verified and installed
+install_old
+$UPDATER "file:distribution/" "$TOOLS" "$VERSION" || fail "install"
+cmp -s "$TOOLS/CBTool/tool/cbtool.jar" "$WORK/expected.jar" || fail "installed jar differs"
+[ `ls -A "$TOOLS" | wc -l` -eq 1 ] || fail "files left in the tools folder: `ls -A "$TOOLS"`"
+
+# Bad checksum, nothing changes
+install_old
+mkdir "$WORK/server"
+cp "distribution/CBTool-v$VERSION.zip" "$WORK/server/"
+echo "0000000000000000000000000000000000000000000000000000000000000000  CBTool-v$VERSION.zip" \
+  > "$WORK/server/CBTool-v$VERSION.zip.sha256"
+$UPDATER "file:$WORK/server/" "$TOOLS" "$VERSION" 2>/dev/null && fail "bad checksum installed"
+[ "`cat "$TOOLS/CBTool/tool/cbtool.jar"`" = "old" ] || fail "bad checksum changed the installed jar"
+[ `ls -A "$TOOLS" | wc -l` -eq 1 ] || fail "files left in the tools folder: `ls -A "$TOOLS"`"
+
+# Installed folder in use (like cbtool.jar loaded by Arduino on Windows)
+install_old
+if chattr +i "$TOOLS/CBTool" 2>/dev/null; then
+  $UPDATER "file:distribution/" "$TOOLS" "$VERSION" || fail "install while in use"
+  [ "`cat "$TOOLS/CBTool/tool/cbtool.jar"`" = "old" ] || fail "the folder in use was changed"
+  [ -d "$TOOLS/.CBTool-pending/CBTool" ] || fail "the update was not kept"
+  chattr -i "$TOOLS/CBTool"
+  $UPDATER --finish "$TOOLS" || fail "finish"
+  cmp -s "$TOOLS/CBTool/tool/cbtool.jar" "$WORK/expected.jar" || fail "finished jar differs"
+  [ `ls -A "$TOOLS" | wc -l` -eq 1 ] || fail "files left in the tools folder: `ls -A "$TOOLS"`"
+else
+  echo "Skipped the folder in use check, chattr is not available"
+fi
+
+rm -rf "$WORK"
+[ $STATUS -eq 0 ] && echo "All updater checks passed"
+exit $STATUS